@@ -1,11 +1,17 @@
 package jp.programminglife.libpljp.android
 
 import android.content.Context
+import android.util.Base64
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
 import org.junit.Assert.*
 import org.junit.Test
 import org.junit.runner.RunWith
+import java.io.File
+import java.util.UUID
 
 @RunWith(AndroidJUnit4::class)
 class UuidTest {
@@ -19,6 +25,57 @@ class UuidTest {
     }
 
 
+    @Test
+    fun mappedFileUuidRepositoryTest() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        MappedFileUuidStore(context).use { it.saveNodeId(987654321L) }
+        val node = MappedFileUuidStore(context).use { it.loadNodeId() }
+        assertEquals(987654321L, node)
+    }
+
+
+    @Suppress("DEPRECATION")
+    @Test
+    fun legacyUtilsUseStoredNodeId() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val uuid = UUIDUtils.generate(context)
+        // 以前と同じ"uuid-node-id"の"<app-pkg>:uuid_node"に保存したノードIDで生成する
+        val preferences = context.getSharedPreferences("uuid-node-id", Context.MODE_PRIVATE)
+        val nodeId = preferences.getLong("${context.applicationInfo.packageName}:uuid_node", 0L)
+        assertNotEquals(0L, nodeId)
+        assertEquals(nodeId, uuid.node())
+        assertEquals(nodeId, UUIDUtils.getDeviceNodeId(context))
+        assertEquals(1, uuid.version())
+
+        val time = 1_100_000_000_000L
+        val uuids = (0 until 100).map { UUIDUtils.generate(context, time, 123_400L) }
+        for (u in uuids) {
+            assertEquals(nodeId, u.node())
+            assertEquals(time, u.epochMilli)
+        }
+        assertEquals(uuids.size, uuids.toSet().size)
+    }
+
+
+    @Suppress("DEPRECATION")
+    @Test
+    fun legacyUtilsGenerateWithAlternatingNodes() {
+        val nodes = longArrayOf(0x010000000001L, 0x010000000002L, 0x010000000003L)
+        val time = 1_100_000_000_000L
+        val uuids = HashSet<UUID>()
+        for (i in 0 until 300) {
+            val node = nodes[i % nodes.size]
+            val uuid = UUIDUtils.generate(node)
+            assertEquals(node, uuid.node())
+            assertTrue(uuids.add(uuid))
+            val timed = UUIDUtils.generate(node, time, 0L)
+            assertEquals(node, timed.node())
+            assertEquals(time, timed.epochMilli)
+            assertTrue(uuids.add(timed))
+        }
+    }
+
+
     @Test
     fun clockSequenceOverflow() {
         val clockSeq = UuidGenerator.ClockSequence(0, 0x3f00)
@@ -71,6 +128,926 @@ class UuidTest {
     }
 
 
+    @Test
+    fun concurrentFirstUseCreatesOneNodeId() {
+        val loads = java.util.concurrent.atomic.AtomicInteger()
+        val saves = java.util.concurrent.atomic.AtomicInteger()
+        val repository = object : UuidGenerator.UuidRepository {
+            @Volatile
+            var saved: Long? = null
+
+            override fun loadNodeId(): Long? {
+                // 読み込みを遅くして、他のスレッドがノードIDの無い状態を見ている間に作らせる
+                loads.incrementAndGet()
+                Thread.sleep(50L)
+                return saved
+            }
+
+            override fun saveNodeId(nodeId: Long?) {
+                saves.incrementAndGet()
+                saved = nodeId
+            }
+        }
+        val generator = UuidGenerator(repository)
+        val threadCount = 8
+        val start = java.util.concurrent.CountDownLatch(1)
+        val uuids = arrayOfNulls<UUID>(threadCount)
+        val threads = (0 until threadCount).map { t -> Thread { start.await(); uuids[t] = generator.generate() } }
+        threads.forEach { it.start() }
+        start.countDown()
+        threads.forEach { it.join() }
+        // キャッシュしたので読み込みも1回だけ
+        assertEquals(1, loads.get())
+        assertEquals(1, saves.get())
+        assertEquals(setOf(repository.saved), uuids.map { it!!.node() }.toSet())
+    }
+
+
+    @Test
+    fun javaConstructorsAreKept() {
+        // Javaやコンパイル済みの呼び出し元が使う、以前からあるコンストラクターが残っていること
+        val repository = UuidGenerator.UuidRepository::class.java
+        val generator = UuidGenerator::class.java.getConstructor(repository).newInstance(ReadOnlyUuidRepository())
+        assertEquals(123456789L, generator.generate().node())
+        UuidGenerator::class.java.getConstructor(repository, UuidStateStore::class.java)
+    }
+
+
+    @Test
+    fun explicitTimeIsNotAlignedToLaterTimestamp() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val time = 1_000_000_000_000L
+        val later = generator.generate(time, 500_000L)
+        val earlier = generator.generate(time, 0L)
+        assertEquals(later.timestamp() - 5000L, earlier.timestamp())
+        assertEquals(time, generator.epochMilli(earlier))
+        // 前回より前の時刻なのでクロックシーケンスを進める
+        assertEquals((later.clockSequence() + 1) and 0x3fff, earlier.clockSequence())
+    }
+
+
+    @Test
+    fun concurrentUuidGeneration() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val threadCount = 8
+        val countPerThread = 10000
+        val results = Array(threadCount) { arrayOfNulls<UUID>(countPerThread) }
+        val threads = (0 until threadCount).map { t ->
+            Thread {
+                for (i in 0 until countPerThread) {
+                    results[t][i] = generator.generate()
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        val uuids = results.flatMapTo(HashSet()) { it.asList() }
+        assertEquals(threadCount * countPerThread, uuids.size)
+    }
+
+
+    @Test
+    fun staleTimestampIsAlignedToLastTimestamp() {
+        val sequencer = UuidSequencer()
+        val rnd = java.util.Random(1L)
+        val issued = HashSet<Pair<Long, Int>>()
+        val reserve = { timestamp: Long ->
+            val reserved = sequencer.reserve(timestamp, 1, false, rnd)
+            if (UuidSequencer.granted(reserved) > 0) {
+                val key = Pair(timestamp + UuidSequencer.lead(reserved), UuidSequencer.clockSeq(reserved))
+                assertTrue("duplicate: $key", issued.add(key))
+            }
+        }
+        // 新しい時刻のクロックシーケンスを使い切った後に、CASの前に古い時刻を読んでいたスレッドが来た場合
+        val t = 1_000_000_000L
+        reserve(t - 1)
+        repeat(UuidSequencer.SEQ_SIZE) { reserve(t) }
+        reserve(t - 1)
+        repeat(UuidSequencer.SEQ_SIZE) { reserve(t) }
+        assertEquals(UuidSequencer.SEQ_SIZE + 1, issued.size)
+    }
+
+
+    @Test
+    fun concurrentUuidGenerationWithCoarseClock() {
+        // 4096回読むごとに1つ進む時計。多くのスレッドが同じ時刻を読み、CASまでに時刻が古くなる
+        val reads = java.util.concurrent.atomic.AtomicLong()
+        val clock = UuidClock { 1_600_000_000_000_0000L + reads.incrementAndGet() / 4096L }
+        val generator = UuidGenerator(ReadOnlyUuidRepository(), UuidGenerator.Version.VERSION1, 0L, UuidSequencer(), clock)
+        val threadCount = 8
+        val countPerThread = 200000
+        val msb = Array(threadCount) { LongArray(countPerThread) }
+        val lsb = Array(threadCount) { LongArray(countPerThread) }
+        generateConcurrently(threadCount, countPerThread) { t, i ->
+            generator.generateTo { m, l ->
+                msb[t][i] = m
+                lsb[t][i] = l
+            }
+        }
+        val uuids = UuidHashSet(threadCount * countPerThread)
+        for (t in 0 until threadCount) {
+            uuids.addAll(msb[t], lsb[t])
+        }
+        assertEquals(threadCount * countPerThread, uuids.size)
+    }
+
+
+    @Test
+    fun shardedConcurrentUuidGeneration() {
+        val threadCount = 8
+        val countPerThread = 100000
+        val sharded = ShardedUuidGenerator(ReadOnlyUuidRepository(), threadCount)
+        val shardedUuids = Array(threadCount) { arrayOfNulls<UUID>(countPerThread) }
+        generateConcurrently(threadCount, countPerThread) { t, i ->
+            shardedUuids[t][i] = sharded.generate()
+        }
+        val uuids = shardedUuids.flatMapTo(HashSet()) { it.asList() }
+        assertEquals(threadCount * countPerThread, uuids.size)
+        assertTrue(uuids.none { it!!.node() == 123456789L })
+    }
+
+
+    @Test
+    fun shardedGeneratorsOverSameRepository() {
+        // 65536回読むごとに1つ進む時計。2つの生成器の最初のバッチが同じ時刻になる
+        val reads = java.util.concurrent.atomic.AtomicLong()
+        val clock = UuidClock { 1_600_000_000_000_0000L + reads.incrementAndGet() / 0x10000L }
+        val repository = ReadOnlyUuidRepository()
+        val a = ShardedUuidGenerator(repository, 2, clock = clock)
+        val b = ShardedUuidGenerator(repository, 2, clock = clock)
+        val n = UuidSequencer.SEQ_SIZE
+        val msb = LongArray(n * 2)
+        val lsb = LongArray(n * 2)
+        a.generateInto(msb, lsb, 0, n)
+        b.generateInto(msb, lsb, n, n)
+        val uuids = UuidHashSet(n * 2)
+        assertEquals(n * 2, uuids.addAll(msb, lsb))
+    }
+
+
+    private inline fun generateConcurrently(
+            threadCount: Int,
+            countPerThread: Int,
+            crossinline block: (thread: Int, index: Int) -> Unit
+    ) {
+        val threads = (0 until threadCount).map { t ->
+            Thread {
+                for (i in 0 until countPerThread) {
+                    block(t, i)
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+    }
+
+
+    @Test
+    fun sinkUuidGeneration() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val uuids = mutableListOf<UUID>()
+
+        generator.generateTo { m, l -> uuids.add(UUID(m, l)) }
+
+        val dst = LongArray(5)
+        generator.generateInto(dst, 3)
+        assertEquals(0L, dst[0] or dst[1] or dst[2])
+        uuids.add(UUID(dst[3], dst[4]))
+        for (offset in intArrayOf(-1, 4, Int.MAX_VALUE)) {
+            assertThrows(IllegalArgumentException::class.java) { generator.generateInto(dst, offset) }
+        }
+
+        // 現在位置から16バイト書き込んで位置を進める
+        val buffer = java.nio.ByteBuffer.allocate(40)
+        buffer.position(3)
+        generator.generateInto(buffer)
+        assertEquals(19, buffer.position())
+        uuids.add(UUID(buffer.getLong(3), buffer.getLong(11)))
+        // バッファのバイトオーダーで書き込むので、同じバイトオーダーで読めば元に戻る
+        buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN)
+        generator.generateInto(buffer)
+        assertEquals(35, buffer.position())
+        val little = UUID(buffer.getLong(19), buffer.getLong(27))
+        uuids.add(little)
+        buffer.order(java.nio.ByteOrder.BIG_ENDIAN)
+        assertEquals(little.mostSignificantBits, java.lang.Long.reverseBytes(buffer.getLong(19)))
+        assertEquals(little.leastSignificantBits, java.lang.Long.reverseBytes(buffer.getLong(27)))
+        assertThrows(IllegalArgumentException::class.java) { generator.generateInto(buffer) }
+        assertEquals(35, buffer.position())
+
+        assertEquals(uuids.size, uuids.toSet().size)
+        uuids.forEach {
+            assertEquals(1, it.version())
+            assertEquals(2, it.variant())
+            assertEquals(123456789L, it.node())
+        }
+    }
+
+
+    @Test
+    fun batchUuidGeneration() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val count = 20000
+        val uuids = generator.generate(count)
+        assertEquals(count, uuids.toSet().size)
+        uuids.forEach {
+            assertEquals(1, it.version())
+            assertEquals(2, it.variant())
+            assertEquals(123456789L, it.node())
+        }
+    }
+
+
+    @Test
+    fun borrowAheadOnClockSequenceOverflow() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository(), maxClockLeadMillis = 1L)
+        val time = 1_100_000_000_000L
+        val uuids = (0 until 0x4000 * 3).mapTo(HashSet()) { generator.generate(time, 0L) }
+        assertEquals(0x4000 * 3, uuids.size)
+        assertTrue(uuids.all { generator.epochMilli(it) == time })
+        assertTrue(generator.clockLead().borrowedTicks >= 2)
+    }
+
+
+    @Test
+    fun clockLeadDoesNotAdvanceClock() {
+        val ticks = 1_100_000_000_000L * 10000L
+        val reads = java.util.concurrent.atomic.AtomicInteger()
+        val clock = object : UuidClock {
+            override fun ticks(): Long {
+                reads.incrementAndGet()
+                return ticks
+            }
+
+            override fun peekTicks(): Long = ticks
+        }
+        val generator = UuidGenerator(ReadOnlyUuidRepository(), UuidGenerator.Version.VERSION1, 1L, UuidSequencer(), clock)
+        val msb = LongArray(0x4000 * 2)
+        generator.generateInto(msb, LongArray(msb.size))
+        val count = reads.get()
+        val lead = generator.clockLead()
+        assertEquals(count, reads.get())
+        assertEquals(100L, lead.currentNanos)
+        assertEquals(1L, lead.borrowedTicks)
+    }
+
+
+    @Test
+    fun borrowedLeadIsSharedWithNonBorrowingCallers() {
+        val sequencer = UuidSequencer()
+        val rnd = java.util.Random(1L)
+        val maxLead = 20 * 10_000_000
+        val issued = HashSet<Pair<Long, Int>>()
+        val reserve = { timestamp: Long, count: Int, lead: Int ->
+            val reserved = sequencer.reserve(timestamp, count, false, rnd, lead)
+            val actual = timestamp + UuidSequencer.lead(reserved)
+            for (k in 0 until UuidSequencer.granted(reserved)) {
+                val key = Pair(actual, (UuidSequencer.clockSeq(reserved) + k) and UuidSequencer.SEQ_MASK)
+                assertTrue("duplicate: $key", issued.add(key))
+            }
+        }
+        // 前借りする呼び出し元がtのクロックシーケンスを使い切った後、前借りしない呼び出し元の時計が10秒戻った
+        val t = 1_000_000_000_000L
+        reserve(t, UuidSequencer.SEQ_SIZE, maxLead)
+        reserve(t - 10 * 10_000_000L, 1, 0)
+        reserve(t, UuidSequencer.SEQ_SIZE, maxLead)
+        assertEquals(UuidSequencer.SEQ_SIZE * 2, issued.size)
+    }
+
+
+    @Test
+    fun bufferedGeneratorTakesInOrderAndRefillsAfterDrain() {
+        // 読むたびに1つ進む時計。補充のバッチごとと、空のときの同期生成ごとに別のタイムスタンプになる
+        val ticks = java.util.concurrent.atomic.AtomicLong()
+        val clock = UuidClock { 1_600_000_000_000_0000L + ticks.incrementAndGet() }
+        val generator = UuidGenerator(ReadOnlyUuidRepository(), UuidGenerator.Version.VERSION1, 0L, UuidSequencer(), clock)
+        val tasks = ArrayDeque<Runnable>()
+        val buffered = BufferedUuidGenerator(generator, 8, 2) { tasks.add(it) }
+        val uuids = mutableListOf<UUID>()
+
+        // 補充前は空なので同期的に生成する。補充タスクは1つだけ積まれている
+        assertEquals(0, buffered.available)
+        uuids.add(buffered.take())
+        assertEquals(1, tasks.size)
+        repeat(3) {
+            while (tasks.isNotEmpty()) tasks.removeFirst().run()
+            assertEquals(8, buffered.available)
+            repeat(8) { uuids.add(buffered.take()) }
+            assertEquals(0, buffered.available)
+            // 空になったら同期的に生成する
+            uuids.add(buffered.take())
+        }
+
+        assertEquals(uuids.size, uuids.toSet().size)
+        uuids.zipWithNext { a, b ->
+            assertTrue("$a, $b", a.timestamp() <= b.timestamp())
+            // 同じ補充のバッチは予約した順のクロックシーケンスで出てくる
+            if (a.timestamp() == b.timestamp()) assertEquals(1, (b.clockSequence() - a.clockSequence()) and 0x3fff)
+        }
+        uuids.forEach {
+            assertEquals(1, it.version())
+            assertEquals(123456789L, it.node())
+        }
+    }
+
+
+    @Test
+    fun concurrentBufferedUuidGeneration() {
+        val threadCount = 8
+        val countPerThread = 50000
+        val generator = UuidGenerator(ReadOnlyUuidRepository(), UuidGenerator.Version.VERSION1, 0L,
+                UuidSequencer(), UuidClock.HYBRID)
+        // 小さいバッファで、取り出しと補充が重なり、空になって同期的に生成する場合も起きるようにする
+        val buffered = BufferedUuidGenerator(generator, 64, 16)
+        val msb = Array(threadCount) { LongArray(countPerThread) }
+        val lsb = Array(threadCount) { LongArray(countPerThread) }
+        generateConcurrently(threadCount, countPerThread) { t, i ->
+            val uuid = buffered.take()
+            msb[t][i] = uuid.mostSignificantBits
+            lsb[t][i] = uuid.leastSignificantBits
+        }
+        val uuids = UuidHashSet(threadCount * countPerThread)
+        for (t in 0 until threadCount) {
+            uuids.addAll(msb[t], lsb[t])
+        }
+        assertEquals(threadCount * countPerThread, uuids.size)
+        for (t in 0 until threadCount) {
+            for (i in 0 until countPerThread) {
+                assertEquals(1, UUID(msb[t][i], lsb[t][i]).version())
+            }
+        }
+    }
+
+
+    @Test
+    fun durableStateSurvivesRestart() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val file = File(context.cacheDir, "durableStateSurvivesRestart")
+        file.delete()
+        val time = 1_200_000_000_000L
+        val uuid1 = MappedFileUuidStore(file).use { store ->
+            UuidGenerator(ReadOnlyUuidRepository(), store, reserveMillis = 1000L).generate(time, 0L)
+        }
+        // 時計が巻き戻った状態で再起動しても、前回の予約より後のタイムスタンプになる
+        val uuid2 = MappedFileUuidStore(file).use { store ->
+            assertTrue(store.loadHighWater() > uuid1.timestamp())
+            UuidGenerator(ReadOnlyUuidRepository(), store).generate(time - 1L, 0L)
+        }
+        assertTrue(uuid2.timestamp() > uuid1.timestamp())
+        file.delete()
+    }
+
+
+    @Test
+    fun restartDoesNotReuseStaleClockSequence() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val file = File(context.cacheDir, "restartDoesNotReuseStaleClockSequence")
+        file.delete()
+        val time = 1_200_000_000_000L
+        // 上限を保存した後にも同じタイムスタンプでクロックシーケンスを払い出す
+        val first = MappedFileUuidStore(file).use { store ->
+            val generator = UuidGenerator(ReadOnlyUuidRepository(), store, reserveMillis = 100_000L)
+            (0 until 100).map { generator.generate(time, 0L) }
+        }
+        // 予約の範囲に来た時刻は前回の上限に揃える
+        val saved = MappedFileUuidStore(file).use { store ->
+            val uuid = UuidGenerator(ReadOnlyUuidRepository(), store).generate(time, 0L)
+            assertTrue(uuid.timestamp() > first.last().timestamp())
+            assertEquals(uuid.clockSequence(), store.loadClockSeq())
+            uuid.clockSequence()
+        }
+        // 大きく巻き戻った時刻では、保存したクロックシーケンスを再利用せず、乱数だけ進めた値を使う
+        val clockSeqs = (0 until 5).map {
+            MappedFileUuidStore(file).use { store ->
+                UuidGenerator(ReadOnlyUuidRepository(), store).generate(time - 3_600_000L, 0L).clockSequence()
+            }
+        }
+        assertFalse(clockSeqs.toString(), saved in clockSeqs)
+        assertTrue(clockSeqs.toString(), clockSeqs.toSet().size > 1)
+        assertThrows(IllegalArgumentException::class.java) {
+            MappedFileUuidStore(file).use { UuidGenerator(ReadOnlyUuidRepository(), it, reserveMillis = 200_000L) }
+        }
+        file.delete()
+    }
+
+
+    @Test
+    fun concurrentStoresReserveDisjointRanges() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val file = File(context.cacheDir, "concurrentStoresReserveDisjointRanges")
+        file.delete()
+        val ticks = 1000L
+        val count = 500
+        // 2つのプロセスの代わりに、それぞれのファイルチャネルを持つ2つのストアを別のスレッドから同時に使う
+        MappedFileUuidStore(file, multiProcess = true).use { a ->
+            MappedFileUuidStore(file, multiProcess = true).use { b ->
+                val start = java.util.concurrent.CountDownLatch(1)
+                val executor = java.util.concurrent.Executors.newFixedThreadPool(2)
+                try {
+                    val futures = listOf(a, b).map { store ->
+                        executor.submit<LongArray> {
+                            start.await()
+                            LongArray(count) { store.reserveHighWater(1_300_000_000_000L, ticks, 0) }
+                        }
+                    }
+                    start.countDown()
+                    val starts = futures.flatMap { it.get().asList() }.sorted()
+                    for (i in 1 until starts.size) {
+                        assertTrue("${starts[i - 1]}, ${starts[i]}", starts[i] - starts[i - 1] >= ticks)
+                    }
+                } finally {
+                    executor.shutdown()
+                }
+            }
+        }
+        file.delete()
+    }
+
+
+    @Test
+    fun sharedStateFileReservesDisjointRanges() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val file = File(context.cacheDir, "sharedStateFileReservesDisjointRanges")
+        file.delete()
+        // 2つのプロセスの代わりに、同じファイルを共有する2つのストアを交互に使う
+        MappedFileUuidStore(file, multiProcess = true).use { a ->
+            MappedFileUuidStore(file, multiProcess = true).use { b ->
+                val generatorA = UuidGenerator(a, a, reserveMillis = 1L)
+                val generatorB = UuidGenerator(b, b, reserveMillis = 1L)
+                val time = 1_300_000_000_000L
+                val uuids = HashSet<UUID>()
+                for (i in 0 until 2000) {
+                    val nano = i / 20 * 100_000L
+                    assertTrue(uuids.add(generatorA.generate(time, nano)))
+                    assertTrue(uuids.add(generatorB.generate(time, nano)))
+                }
+                assertEquals(1, uuids.map { it.node() }.toSet().size)
+            }
+        }
+        file.delete()
+    }
+
+
+    @Test
+    fun version7UuidGeneration() {
+        val generator = UuidV7Generator()
+        val time = System.currentTimeMillis()
+        val uuids = (0 until 10000).map { generator.generate(time) }
+        val first = uuids.first()
+        assertEquals(7, first.version())
+        assertEquals(2, first.variant())
+        assertTrue(generator.epochMilli(first) >= time)
+        uuids.zipWithNext { a, b ->
+            assertTrue("$a < $b", (a.mostSignificantBits xor Long.MIN_VALUE) < (b.mostSignificantBits xor Long.MIN_VALUE))
+        }
+    }
+
+
+    @Test
+    fun version7BatchLeadIsCapped() {
+        // 時計を止めておき、前借りできる範囲を超えるバッチが時計を待つことを確かめる。
+        // 状態はプロセス内で共有するので、止める時刻は最後に払い出したミリ秒に合わせる
+        val now = java.util.concurrent.atomic.AtomicLong(System.currentTimeMillis())
+        val generator = UuidV7Generator({ now.get() * 10000L }, maxClockLeadMillis = 1L)
+        now.set(generator.epochMilli(generator.generate()))
+        val msb = LongArray(0x1000 * 3)
+        val lsb = LongArray(msb.size)
+        val thread = Thread { generator.generateInto(msb, lsb) }
+        thread.start()
+        thread.join(200L)
+        assertTrue(thread.isAlive)
+        now.addAndGet(2L)
+        thread.join(10000L)
+        assertFalse(thread.isAlive)
+        for (i in 1 until msb.size) {
+            assertTrue("${msb[i - 1]} < ${msb[i]}", msb[i - 1] < msb[i])
+        }
+        assertTrue(generator.epochMilli(UUID(msb.last(), lsb.last())) <= now.get() + 1L)
+        // 前借りできる範囲を超えて時計が巻き戻った場合は、待たずに前回のミリ秒から続ける
+        now.addAndGet(-10_000L)
+        assertTrue(generator.generate().mostSignificantBits > msb.last())
+    }
+
+
+    @Test
+    fun version6Conversion() {
+        val v1 = UuidGenerator(ReadOnlyUuidRepository()).generate(1_000_000_000_000L, 999_1234_00L)
+        val v6 = UuidV6.fromVersion1(v1)
+        assertEquals(6, v6.version())
+        assertEquals(v1.timestamp(), UuidV6.timestamp(v6))
+        assertEquals(v1.leastSignificantBits, v6.leastSignificantBits)
+        assertEquals(v1, UuidV6.toVersion1(v6))
+
+        val msb = longArrayOf(v1.mostSignificantBits, UUID.randomUUID().mostSignificantBits)
+        val original = msb.copyOf()
+        assertEquals(1, UuidV6.fromVersion1(msb, 0, msb, 0, msb.size))
+        assertEquals(v6.mostSignificantBits, msb[0])
+        assertEquals(1, UuidV6.toVersion1(msb, 0, msb, 0, msb.size))
+        assertArrayEquals(original, msb)
+    }
+
+
+    @Test
+    fun pluggableClock() {
+        val ticks = 1_000_000_000_000L * 10000L + 1234L
+        val generator = UuidGenerator(ReadOnlyUuidRepository(), clock = UuidClock { ticks })
+        val uuid = generator.generate()
+        assertEquals(ticks + 0x01b21dd213814000L, uuid.timestamp())
+
+        val clock = HybridUuidClock()
+        val values = LongArray(10000) { clock.ticks() }
+        for (i in 1 until values.size) {
+            assertTrue("${values[i - 1]} < ${values[i]}", values[i - 1] < values[i])
+        }
+        assertTrue(Math.abs(values[0] / 10000L - System.currentTimeMillis()) < 1000L)
+    }
+
+
+    @Test
+    fun timeOrderedSort() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val base = 1_500_000_000_000L
+        val uuids = (0 until 5000).map { generator.generate(base + it / 10, it * 100L) }
+        val (min, max) = UuidTimeOrder.range(base + 100, base + 199)
+        val inRange = uuids.filter {
+            UuidTimeOrder.TIME_ORDER.compare(min, it) <= 0 && UuidTimeOrder.TIME_ORDER.compare(it, max) <= 0
+        }
+        assertEquals(1000, inRange.size)
+        inRange.forEach { assertTrue(generator.epochMilli(it) in (base + 100)..(base + 199)) }
+
+        val shuffled = uuids.shuffled().toMutableList()
+        UuidTimeOrder.sort(shuffled)
+        assertEquals(uuids.sortedWith(UuidTimeOrder.TIME_ORDER), shuffled)
+        shuffled.zipWithNext { a, b -> assertTrue(a.timestamp() <= b.timestamp()) }
+    }
+
+
+    @Test
+    fun uuidFlow() = runBlocking {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val uuids = generator.asFlow(batchSize = 100).take(1000).toList()
+        assertEquals(1000, uuids.toSet().size)
+
+        val chunks = generator.chunkedFlow(chunkSize = 500).take(4).toList()
+        val all = chunks.flatMap { chunk -> (0 until 500).map { UUID(chunk[it * 2], chunk[it * 2 + 1]) } }
+        assertEquals(2000, all.toSet().size)
+        all.forEach { assertEquals(1, it.version()) }
+    }
+
+
+    @Test
+    fun version4UuidGeneration() {
+        val generator = UuidV4Generator(blockSize = 100)
+        val uuids = generator.generate(10000) + (0 until 1000).map { UuidV4Generator.current().generate() }
+        assertEquals(uuids.size, uuids.toSet().size)
+        uuids.forEach {
+            assertEquals(4, it.version())
+            assertEquals(2, it.variant())
+        }
+        // スレッドごとの生成器でも重複しない
+        val concurrent = Array(4) { arrayOfNulls<UUID>(100000) }
+        generateConcurrently(concurrent.size, 100000) { t, i -> concurrent[t][i] = UuidV4Generator.current().generate() }
+        val all = concurrent.flatMapTo(HashSet()) { it.asList() }
+        assertEquals(concurrent.size * 100000, all.size)
+        assertTrue(all.all { it!!.version() == 4 })
+    }
+
+
+    @Test
+    fun longIdGeneration() {
+        val generator = LongIdGenerator(ReadOnlyUuidRepository())
+        val time = System.currentTimeMillis()
+        val ids = LongArray(10000)
+        generator.generateInto(ids, 0, 5000)
+        for (i in 5000 until ids.size) {
+            ids[i] = generator.generate()
+        }
+        for (i in 1 until ids.size) {
+            assertTrue("${ids[i - 1]} < ${ids[i]}", ids[i - 1] < ids[i])
+        }
+        assertTrue(ids[0] > 0L)
+        assertEquals(generator.workerId, LongIdGenerator.workerId(ids[0]))
+        assertTrue(Math.abs(generator.epochMilli(ids[0]) - time) < 1000L)
+    }
+
+
+    @Test
+    fun longIdBatchLeadIsCapped() {
+        // 時計を止めておき、前借りできる範囲を超えるバッチが時計を待つことを確かめる
+        val base = 2_000_000_000_000L
+        val now = java.util.concurrent.atomic.AtomicLong(base)
+        val generator = LongIdGenerator(LongIdGenerator.MAX_WORKER_ID, clock = { now.get() * 10000L },
+                maxClockLeadMillis = 2L)
+        val ids = LongArray(4096 * 5)
+        val thread = Thread { generator.generateInto(ids) }
+        thread.start()
+        thread.join(200L)
+        assertTrue(thread.isAlive)
+        now.addAndGet(2L)
+        thread.join(10000L)
+        assertFalse(thread.isAlive)
+        for (i in 1 until ids.size) {
+            assertTrue("${ids[i - 1]} < ${ids[i]}", ids[i - 1] < ids[i])
+        }
+        assertEquals(base, generator.epochMilli(ids[0]))
+        assertEquals(now.get() + 2L, generator.epochMilli(ids.last()))
+        // 前借りできる範囲を超えて時計が巻き戻った場合は、待たずに前回のミリ秒から続ける
+        now.addAndGet(-10_000L)
+        val id = generator.generate()
+        assertTrue(id > ids.last())
+    }
+
+
+    @Test
+    fun ulidGeneration() {
+        val generator = UlidGenerator()
+        val time = System.currentTimeMillis()
+        val chars = CharArray(UlidGenerator.LENGTH * 5000)
+        generator.generateInto(chars, 0, 5000)
+        val ulids = (0 until 5000).map { String(chars, it * UlidGenerator.LENGTH, UlidGenerator.LENGTH) } +
+                (0 until 5000).map { generator.generateString() }
+        ulids.zipWithNext { a, b -> assertTrue("$a < $b", a < b) }
+
+        val out = LongArray(2)
+        UlidGenerator.parse(ulids[0], 0) { msb, lsb ->
+            out[0] = msb
+            out[1] = lsb
+        }
+        assertTrue(Math.abs(UlidGenerator.epochMilli(out[0]) - time) < 1000L)
+        assertEquals(ulids[0], UuidCompactCodec.encodeBase32(UUID(out[0], out[1])))
+    }
+
+
+    @Test
+    fun ulidBatchLeadIsCapped() {
+        // 時計を止めておき、前借りできる範囲を超えるバッチが時計を待つことを確かめる。
+        // 状態はプロセス内で共有するので、止める時刻は最後に払い出したミリ秒に合わせる
+        val now = java.util.concurrent.atomic.AtomicLong(System.currentTimeMillis())
+        val generator = UlidGenerator({ now.get() * 10000L }, maxClockLeadMillis = 1L)
+        generator.generateTo { msb, _ -> now.set(UlidGenerator.epochMilli(msb)) }
+        val msb = LongArray(0x10000 * 3)
+        val lsb = LongArray(msb.size)
+        val thread = Thread { generator.generateInto(msb, lsb) }
+        thread.start()
+        thread.join(200L)
+        assertTrue(thread.isAlive)
+        now.addAndGet(2L)
+        thread.join(10000L)
+        assertFalse(thread.isAlive)
+        for (i in 1 until msb.size) {
+            assertTrue("${msb[i - 1]} < ${msb[i]}", msb[i - 1] < msb[i])
+        }
+        assertTrue(UlidGenerator.epochMilli(msb.last()) <= now.get() + 1L)
+        // 前借りできる範囲を超えて時計が巻き戻った場合は、待たずに前回のミリ秒から続ける
+        now.addAndGet(-10_000L)
+        generator.generateTo { m, _ -> assertTrue(m > msb.last()) }
+    }
+
+
+    @Test
+    fun nameBasedUuidGeneration() {
+        val v5 = NameUuidGenerator(NameUuidGenerator.NAMESPACE_DNS)
+        assertEquals(UUID.fromString("886313e1-3b8a-5372-9b90-0c9aee199e5d"), v5.generate("python.org"))
+        val v3 = NameUuidGenerator(NameUuidGenerator.NAMESPACE_DNS, NameUuidGenerator.Version.VERSION3)
+        assertEquals(UUID.fromString("6fa459ea-ee8a-3ca4-894e-db77e160355e"), v3.generate("python.org"))
+
+        val plain = NameUuidGenerator(null, NameUuidGenerator.Version.VERSION3)
+        val names = arrayOf("", "a@example.com", "日本語\uD83D\uDE00", "x".repeat(3000), "\uD800")
+        val msb = LongArray(names.size)
+        val lsb = LongArray(names.size)
+        plain.generateAll(names, msb, lsb)
+        for (i in names.indices) {
+            val expected = UUID.nameUUIDFromBytes(names[i].toByteArray())
+            assertEquals(expected, plain.generate(names[i]))
+            assertEquals(expected, UUID(msb[i], lsb[i]))
+            assertEquals(expected, plain.generate(java.nio.ByteBuffer.wrap(names[i].toByteArray())))
+        }
+    }
+
+
+    @Test
+    fun columnCodecRoundTrip() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val n = 100000
+        val msb = LongArray(n)
+        val lsb = LongArray(n)
+        generator.generateInto(msb, lsb, 0, n - 100)
+        UuidV4Generator().generateInto(msb, lsb, n - 100, 100)
+
+        val buffer = java.nio.ByteBuffer.allocate(UuidColumnCodec.maxEncodedSize(n).toInt())
+        UuidColumnCodec.encode(msb, lsb, 0, n, buffer)
+        val size = buffer.position()
+        assertTrue("size=$size", size * 5 < n * 16)
+        buffer.flip()
+        val (decodedMsb, decodedLsb) = UuidColumnCodec.decode(buffer)
+        assertArrayEquals(msb, decodedMsb)
+        assertArrayEquals(lsb, decodedLsb)
+
+        val out = java.io.ByteArrayOutputStream()
+        UuidColumnCodec.encode(msb, lsb, 0, n, out)
+        assertEquals(size, out.size())
+        val (streamMsb, streamLsb) = UuidColumnCodec.decode(java.io.BufferedInputStream(out.toByteArray().inputStream()))
+        assertArrayEquals(msb, streamMsb)
+        assertArrayEquals(lsb, streamLsb)
+    }
+
+
+    @Test
+    fun columnCodecRejectsHugeCount() {
+        // 要素数だけが大きく、データの無いヘッダー
+        val header = byteArrayOf(1, 0xff.toByte(), 0xff.toByte(), 0xff.toByte(), 0xff.toByte(), 0x07)
+        assertThrows(IllegalArgumentException::class.java) { UuidColumnCodec.decode(java.nio.ByteBuffer.wrap(header)) }
+        assertThrows(java.io.EOFException::class.java) { UuidColumnCodec.decode(header.inputStream()) }
+        // 1要素あたり2バイトに満たない長さも壊れている
+        val short = byteArrayOf(1, 4, 0, 0, 0, 0, 0)
+        assertThrows(IllegalArgumentException::class.java) { UuidColumnCodec.decode(java.nio.ByteBuffer.wrap(short)) }
+    }
+
+
+    @Test
+    fun stringCodecFormatAndParse() {
+        val chars = CharArray(UuidStringCodec.LENGTH)
+        val out = LongArray(2)
+        repeat(1000) {
+            val uuid = UUID.randomUUID()
+            assertEquals(uuid.toString(), UuidStringCodec.toString(uuid))
+            UuidStringCodec.format(uuid.mostSignificantBits, uuid.leastSignificantBits, chars)
+            UuidStringCodec.parseInto(String(chars).uppercase(), out)
+            assertEquals(uuid.mostSignificantBits, out[0])
+            assertEquals(uuid.leastSignificantBits, out[1])
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException::class)
+    fun stringCodecParseInvalidString() {
+        UuidStringCodec.parse("123e4567-e89b-12d3-a456-42661417400g")
+    }
+
+
+    @Test
+    fun stringCodecRejectsTrailingCharacters() {
+        val src = "123e4567-e89b-12d3-a456-426614174000garbage"
+        val out = LongArray(2)
+        assertThrows(IllegalArgumentException::class.java) { UuidStringCodec.parse(src) }
+        assertThrows(IllegalArgumentException::class.java) { UuidStringCodec.parseTo(src) { _, _ -> } }
+        assertThrows(IllegalArgumentException::class.java) { UuidStringCodec.parseInto(src, out) }
+        // 位置を指定したときは後ろの文字を見ない
+        val uuid = UUID.fromString("123e4567-e89b-12d3-a456-426614174000")
+        assertEquals(uuid, UuidStringCodec.parse(src, 0))
+        UuidStringCodec.parseInto("x$src", 1, out)
+        assertEquals(uuid.mostSignificantBits, out[0])
+        assertEquals(uuid.leastSignificantBits, out[1])
+    }
+
+
+    @Test
+    fun stringCodecBulkFormatAndParseMatchesJdk() {
+        val count = 100000
+        val msb = LongArray(count)
+        val lsb = LongArray(count)
+        UuidGenerator(ReadOnlyUuidRepository()).generateInto(msb, lsb)
+        val uuids = Array(count) { UUID(msb[it], lsb[it]) }
+
+        val jdkStrings = Array(count) { uuids[it].toString() }
+        val jdkParsed = Array(count) { UUID.fromString(jdkStrings[it]) }
+
+        val chars = CharArray(count * UuidStringCodec.LENGTH)
+        UuidStringCodec.formatAll(msb, lsb, 0, count, chars)
+        val parsedMsb = LongArray(count)
+        val parsedLsb = LongArray(count)
+        UuidStringCodec.parseAll(chars, 0, count, parsedMsb, parsedLsb)
+
+        assertArrayEquals(msb, parsedMsb)
+        assertArrayEquals(lsb, parsedLsb)
+        assertEquals(jdkStrings.joinToString(""), String(chars))
+        assertArrayEquals(uuids, jdkParsed)
+    }
+
+
+    @Test
+    fun compactCodecBytesRoundTrip() {
+        val uuid = UUID.randomUUID()
+        val bytes = UuidCompactCodec.toBytes(uuid)
+        val buffer = java.nio.ByteBuffer.allocate(16)
+        UuidCompactCodec.writeBytes(uuid.mostSignificantBits, uuid.leastSignificantBits, buffer, 0)
+        assertArrayEquals(buffer.array(), bytes)
+        assertEquals(uuid, UuidCompactCodec.fromBytes(bytes))
+    }
+
+
+    @Test
+    fun compactCodecBase64UrlRoundTrip() {
+        repeat(1000) {
+            val uuid = UUID.randomUUID()
+            val encoded = UuidCompactCodec.encodeBase64Url(uuid)
+            val expected = Base64.encodeToString(UuidCompactCodec.toBytes(uuid),
+                    Base64.URL_SAFE or Base64.NO_PADDING or Base64.NO_WRAP)
+            assertEquals(expected, encoded)
+            assertEquals(uuid, UuidCompactCodec.decodeBase64Url(encoded))
+        }
+    }
+
+
+    @Test
+    fun compactCodecBase32RoundTripAndOrder() {
+        val uuids = List(1000) { UUID.randomUUID() }
+        uuids.forEach {
+            val encoded = UuidCompactCodec.encodeBase32(it)
+            assertEquals(UuidCompactCodec.BASE32_LENGTH, encoded.length)
+            assertEquals(it, UuidCompactCodec.decodeBase32(encoded))
+            assertEquals(it, UuidCompactCodec.decodeBase32(encoded.lowercase()))
+        }
+        val byValue = uuids.sortedWith(compareBy<UUID> { it.mostSignificantBits xor Long.MIN_VALUE }
+                .thenBy { it.leastSignificantBits xor Long.MIN_VALUE })
+        assertEquals(byValue, uuids.sortedBy { UuidCompactCodec.encodeBase32(it) })
+    }
+
+
+    @Test
+    fun hashSetMatchesHashSet() {
+        val rnd = java.util.Random(1)
+        // 少ない種類から選んで重複と削除を起こす
+        val pool = Array(5000) { UUID(rnd.nextLong(), rnd.nextLong()) } + UUID(0L, 0L)
+        val expected = HashSet<UUID>()
+        val set = UuidHashSet()
+        repeat(50000) {
+            val uuid = pool[rnd.nextInt(pool.size)]
+            if (rnd.nextInt(3) == 0) {
+                assertEquals(expected.remove(uuid), set.remove(uuid))
+            } else {
+                assertEquals(expected.add(uuid), set.add(uuid))
+            }
+        }
+        assertEquals(expected.size, set.size)
+        pool.forEach { assertEquals(it in expected, it in set) }
+
+        val visited = HashSet<UUID>()
+        val cursor = set.cursor()
+        while (cursor.moveNext()) {
+            assertTrue(visited.add(cursor.toUuid()))
+        }
+        assertEquals(expected, visited)
+    }
+
+
+    @Test
+    fun hashMaps() {
+        val generator = UuidGenerator(ReadOnlyUuidRepository())
+        val msb = LongArray(100000)
+        val lsb = LongArray(msb.size)
+        generator.generateInto(msb, lsb)
+
+        val objects = UuidObjectMap<String>()
+        val counts = UuidLongMap(noValue = -1L)
+        for (i in msb.indices) {
+            assertNull(objects.put(msb[i], lsb[i], i.toString()))
+            assertEquals(-1L, counts.put(msb[i], lsb[i], i.toLong()))
+        }
+        for (i in msb.indices step 2) {
+            assertEquals(i.toString(), objects.remove(msb[i], lsb[i]))
+            assertEquals(i.toLong(), counts.addTo(msb[i], lsb[i], 1L) - 1L)
+        }
+        assertEquals(msb.size / 2, objects.size)
+        assertEquals(msb.size, counts.size)
+        for (i in msb.indices) {
+            assertEquals(if (i % 2 == 0) null else i.toString(), objects[msb[i], lsb[i]])
+        }
+
+        var sum = 0L
+        counts.forEach { _, _, value -> sum += value }
+        assertEquals(msb.indices.sumOf { it.toLong() } + msb.size / 2, sum)
+        val cursor = objects.cursor()
+        var n = 0
+        while (cursor.moveNext()) {
+            assertEquals(cursor.value, objects[cursor.msb, cursor.lsb])
+            n++
+        }
+        assertEquals(objects.size, n)
+    }
+
+
+    @Test
+    fun warmUp() {
+        val loadThreads = java.util.concurrent.CopyOnWriteArrayList<Thread>()
+        val repository = object : UuidGenerator.UuidRepository {
+            override fun loadNodeId(): Long {
+                loadThreads.add(Thread.currentThread())
+                return 123456789L
+            }
+            override fun saveNodeId(nodeId: Long?) {}
+        }
+        val generator = UuidGenerator(repository)
+        generator.warmUp().get()
+        // ノードIDは呼び出し元ではなく、ウォームアップのスレッドで1回だけ読み込まれている
+        assertEquals(1, loadThreads.size)
+        assertNotSame(Thread.currentThread(), loadThreads[0])
+        assertEquals(123456789L, generator.generate().node())
+        runBlocking { generator.preloadAsync() }
+        assertEquals(1, loadThreads.size)
+    }
+
+
     private class ReadOnlyUuidRepository(private val nodeId: Long = 123456789L) : UuidGenerator.UuidRepository {
         override fun loadNodeId(): Long = nodeId
         override fun saveNodeId(nodeId: Long?) {}
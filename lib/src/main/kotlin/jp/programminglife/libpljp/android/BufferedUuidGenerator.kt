@@ -0,0 +1,111 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+
+/**
+ * あらかじめ生成したUUIDをリングバッファに溜めておき、[take]ですぐに返す。
+ *
+ * 残りが[lowWaterMark]以下になると[executor]でバッファを補充する。メインスレッドでは[take]はバッファの
+ * 読み出しだけで済み、[SecureRandom][java.security.SecureRandom]の初期化やノードIDの読み込みを待たない。
+ * バッファが空の場合は[generator]で同期的に生成する。
+ * バッファのUUIDは補充した時点のタイムスタンプを持つので、[take]した時刻とは一致しない。
+ * @param capacity バッファの大きさ。2のべき乗に切り上げる。
+ */
+class BufferedUuidGenerator(
+        private val generator: UuidGenerator,
+        capacity: Int = 256,
+        private val lowWaterMark: Int = capacity / 4,
+        private val executor: Executor = defaultExecutor
+) {
+    private val mask: Int
+    private val msb: LongArray
+    private val lsb: LongArray
+    /** 次に取り出す位置。 */
+    private val head = AtomicLong()
+    /** 次に補充する位置。補充タスクだけが書き込む。 */
+    @Volatile
+    private var tail = 0L
+    private val refilling = AtomicBoolean()
+    private val refillTask = Runnable { refill() }
+
+
+    init {
+        require(capacity in 1..(1 shl 20)) { "capacity=$capacity" }
+        require(lowWaterMark in 0 until capacity) { "lowWaterMark=$lowWaterMark" }
+        val size = if (capacity == 1) 1 else Integer.highestOneBit(capacity - 1) shl 1
+        mask = size - 1
+        msb = LongArray(size)
+        lsb = LongArray(size)
+        requestRefill()
+    }
+
+
+    /**
+     * バッファからUUIDを1つ取り出す。バッファが空の場合は同期的に生成する。
+     */
+    fun take(): UUID {
+        while (true) {
+            val h = head.get()
+            val t = tail
+            if (h >= t) {
+                requestRefill()
+                return generator.generate()
+            }
+            val i = (h and mask.toLong()).toInt()
+            val m = msb[i]
+            val l = lsb[i]
+            // 補充タスクは取り出し済みの位置にしか書き込まないので、CASに成功すれば読んだ値は正しい
+            if (head.compareAndSet(h, h + 1)) {
+                if (t - h - 1 <= lowWaterMark) requestRefill()
+                return UUID(m, l)
+            }
+        }
+    }
+
+
+    /** バッファに残っているUUIDの数。 */
+    val available: Int get() = (tail - head.get()).coerceAtLeast(0L).toInt()
+
+
+    /** 補充タスクが動いていなければ開始する。 */
+    fun requestRefill() {
+        if (refilling.compareAndSet(false, true)) {
+            executor.execute(refillTask)
+        }
+    }
+
+
+    private fun refill() {
+        try {
+            val size = mask + 1
+            var t = tail
+            while (true) {
+                val free = size - (t - head.get()).toInt()
+                if (free <= 0) break
+                val i = (t and mask.toLong()).toInt()
+                val n = minOf(free, size - i)
+                generator.generateInto(msb, lsb, i, n)
+                t += n
+                tail = t
+            }
+        } finally {
+            refilling.set(false)
+        }
+        if (tail - head.get() <= lowWaterMark) requestRefill()
+    }
+
+
+    companion object {
+        private val defaultExecutor: Executor by lazy {
+            Executors.newSingleThreadExecutor { r ->
+                Thread(r, "BufferedUuidGenerator").apply { isDaemon = true }
+            }
+        }
+    }
+
+}
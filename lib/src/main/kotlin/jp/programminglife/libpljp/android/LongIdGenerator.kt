@@ -0,0 +1,143 @@
+package jp.programminglife.libpljp.android
+
+import java.security.SecureRandom
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+
+/**
+ * 64ビットの時刻順のID(Snowflake形式)を生成する。
+ *
+ * IDは上位から符号ビット(常に0)、[epochMilli]からのミリ秒41ビット(約69年)、ワーカーID10ビット、
+ * シーケンス12ビットを並べたもので、正の[Long]として大小を比べると生成時刻の順になる。
+ * ミリ秒とシーケンスを[MillisSequencer]で払い出すので、ロックを取らない。
+ * 1ミリ秒に4096個を超えた場合は次のミリ秒を前借りする。前借りは時計より[maxClockLeadMillis]先のミリ秒までで、
+ * それを使い切ると時計が進むのを待つ。状態はワーカーIDごとにプロセス内で共有するため、
+ * 同じワーカーIDの生成器を複数作っても重複しない。
+ * 異なるワーカーIDのIDは重複しないが、ワーカーIDは10ビットしかないので、ノードIDから作った場合は
+ * 別の端末と同じワーカーIDになることがある。
+ * @param workerId 0 - 1023。
+ * @param epochMilli 時刻の基準にするUNIXエポックからのミリ秒。
+ * @param clock 時計。デフォルトは[UuidGenerator]と同じ[UuidClock.HYBRID]。
+ * @param maxClockLeadMillis 前借りしたミリ秒が時計より先行してよい量。0なら前借りしない。
+ */
+class LongIdGenerator(
+        val workerId: Int,
+        private val epochMilli: Long = DEFAULT_EPOCH_MILLI,
+        private val clock: UuidClock = UuidClock.HYBRID,
+        private val maxClockLeadMillis: Long = 1000L
+) {
+    private val sequencer: MillisSequencer
+
+
+    init {
+        require(workerId in 0..MAX_WORKER_ID) { "workerId=$workerId" }
+        require(maxClockLeadMillis in 0L..(Int.MAX_VALUE / 10000L)) { "maxClockLeadMillis=$maxClockLeadMillis" }
+        var s = states.get(workerId)
+        if (s == null) {
+            states.compareAndSet(workerId, null, MillisSequencer(SEQUENCE_BITS))
+            s = states.get(workerId)!!
+        }
+        sequencer = s
+    }
+
+
+    /**
+     * [repository]のノードIDからワーカーIDを作る。ノードIDが無ければ[UuidGenerator]と同じ方法で作って保存する。
+     */
+    constructor(
+            repository: UuidGenerator.UuidRepository,
+            epochMilli: Long = DEFAULT_EPOCH_MILLI,
+            clock: UuidClock = UuidClock.HYBRID,
+            maxClockLeadMillis: Long = 1000L
+    ) : this(foldNodeId(loadOrCreateNodeId(repository)), epochMilli, clock, maxClockLeadMillis)
+
+
+    /** 現在時刻でIDを生成する。 */
+    fun generate(): Long {
+        var id = 0L
+        reserve(1) { first, _ -> id = makeId(first) }
+        return id
+    }
+
+
+    /**
+     * 現在時刻で[length]個のIDを生成し、[dst]の[offset]以降に書き込む。
+     * 状態の更新は前借りできる範囲ごとに1回だけ行い、生成したIDは増加する。前借りできる範囲を超える分は
+     * 時計が進むのを待って続きを予約する。
+     */
+    fun generateInto(dst: LongArray, offset: Int = 0, length: Int = dst.size - offset) {
+        require(offset >= 0 && length >= 0 && offset + length <= dst.size) {
+            "offset=$offset, length=$length, dst.size=${dst.size}"
+        }
+        var i = 0
+        while (i < length) {
+            i += reserve(length - i) { first, granted ->
+                for (k in 0 until granted) {
+                    dst[offset + i + k] = makeId(first + k)
+                }
+            }
+        }
+    }
+
+
+    /** [id]の時刻(UNIXエポックからのミリ秒)。 */
+    fun epochMilli(id: Long): Long = (id ushr (WORKER_BITS + SEQUENCE_BITS)) + epochMilli
+
+
+    /**
+     * ミリ秒とシーケンスを連結した値(tick)を最大[count]個連続で予約し、先頭のtickと予約できた数を[block]に渡す。
+     * 時計より[maxClockLeadMillis]を超えて先のミリ秒は予約せず、1つも予約できなければ時計が進むのを待つ。
+     * 時計が巻き戻っていて前回のミリ秒がそれより先にある場合は、前回のミリ秒を時計の代わりにする。
+     * ミリ秒はUNIXエポックからの値で持つので、基準の異なる生成器で状態を共有しても重複しない。
+     * @return 予約できた数。
+     */
+    private inline fun reserve(count: Int, block: (first: Long, granted: Int) -> Unit): Int =
+            sequencer.reserve(count, maxClockLeadMillis, clock.ticks() / 10000L, { clock.ticks() / 10000L }, { 0L }, block)
+
+
+    private fun makeId(tick: Long): Long {
+        val time = (tick ushr SEQUENCE_BITS) - epochMilli
+        if (time < 0L || time > MAX_TIME) throw IllegalStateException("time out of range: $time")
+        return time shl (WORKER_BITS + SEQUENCE_BITS) or
+                (workerId.toLong() shl SEQUENCE_BITS) or
+                (tick and SEQUENCE_MASK)
+    }
+
+
+    companion object {
+        /** 2020-01-01T00:00:00Z */
+        const val DEFAULT_EPOCH_MILLI = 1577836800000L
+        const val MAX_WORKER_ID = 0x3ff
+        private const val WORKER_BITS = 10
+        private const val SEQUENCE_BITS = 12
+        private const val SEQUENCE_MASK = (1L shl SEQUENCE_BITS) - 1
+        private const val MAX_TIME = (1L shl 41) - 1
+
+        /** ワーカーIDごとの最後に払い出したtick。 */
+        private val states = AtomicReferenceArray<MillisSequencer?>(MAX_WORKER_ID + 1)
+
+
+        /** [id]のワーカーID。 */
+        @JvmStatic
+        fun workerId(id: Long): Int = (id ushr SEQUENCE_BITS).toInt() and MAX_WORKER_ID
+
+
+        /** 48ビットのノードIDを10ビットずつ折り畳んでワーカーIDにする。 */
+        private fun foldNodeId(nodeId: Long): Int {
+            var n = nodeId and 0xffffffffffffL
+            var w = 0L
+            while (n != 0L) {
+                w = w xor (n and MAX_WORKER_ID.toLong())
+                n = n ushr WORKER_BITS
+            }
+            return w.toInt()
+        }
+
+
+        private fun loadOrCreateNodeId(repository: UuidGenerator.UuidRepository): Long {
+            repository.loadNodeId()?.let { return it }
+            return UuidGenerator.generateNodeId(SecureRandom()).also { repository.saveNodeId(it) }
+        }
+    }
+
+}
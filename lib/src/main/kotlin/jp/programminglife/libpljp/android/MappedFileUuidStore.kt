@@ -0,0 +1,214 @@
+package jp.programminglife.libpljp.android
+
+import android.content.Context
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.util.concurrent.ConcurrentHashMap
+
+
+/**
+ * 小さな固定レイアウトのファイルをメモリマップして、ノードIDと[UuidStateStore]の状態を保存する。
+ * [UuidGenerator.PreferencesUuidRepository]と違い、XMLの解析や非同期のコミットがなく、数マイクロ秒で読み込める。
+ *
+ * ファイルにはレコードを2つ置き、更新のたびに古い方のレコードへ連番とチェックサムを付けて書き込む。
+ * 書き込みの途中で中断しても、もう一方のレコードが有効なまま残る。読み込みは有効なレコードのうち連番が大きい方を使う。
+ * このクラスはスレッドセーフ。
+ *
+ * [multiProcess]がtrueの場合は、同じファイルを使う複数のプロセスで状態を共有する。読み書きのたびに[FileLock]を
+ * 取ってファイルから読み直し、[reserveHighWater]では他のプロセスが予約した範囲の後ろを予約する。
+ * 各プロセスの生成器は予約した範囲のタイムスタンプを独占するので、同じノードIDでもUUIDが重複しない。
+ * ロックを取るのは予約した範囲を使い切ったときだけで、UUIDごとには取らない。
+ * [FileLock]はプロセス単位なので、同じプロセスで同じファイルに対して作ったインスタンス同士はファイルごとの
+ * モニターで待ち合わせてからロックを取る。
+ * @see UuidGenerator.multiProcess
+ */
+class MappedFileUuidStore(
+        file: File,
+        private val multiProcess: Boolean = false
+) : UuidGenerator.UuidRepository, UuidStateStore, Closeable {
+
+    private val channel: FileChannel
+    /** 同じプロセスで同じファイルを使うインスタンスが、[FileLock]を取る前に待ち合わせるモニター。 */
+    private val fileMonitor: Any = fileMonitors.getOrPut(file.canonicalPath) { Any() }
+    private val buffer: MappedByteBuffer
+    /** 最後に書き込んだレコードの連番。 */
+    private var seqNo = 0L
+    /** 最後に書き込んだレコードの位置。無ければ-1。 */
+    private var currentSlot = -1
+    private var nodeId: Long? = null
+    private var highWater = UuidStateStore.NO_HIGH_WATER
+    private var clockSeq = -1
+
+
+    init {
+        file.absoluteFile.parentFile?.mkdirs()
+        channel = RandomAccessFile(file, "rw").channel
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, FILE_SIZE.toLong())
+        if (multiProcess) locked { loadOrFormat() } else loadOrFormat()
+    }
+
+
+    /**
+     * アプリのバックアップ対象外のディレクトリにある、UUIDステート専用のファイル("<app-pkg>_UuidState.bin")を使う。
+     */
+    constructor(context: Context, multiProcess: Boolean = false) :
+            this(File(context.noBackupFilesDir, context.applicationInfo.packageName + "_UuidState.bin"), multiProcess)
+
+
+    @Synchronized
+    override fun loadNodeId(): Long? = shared { nodeId }
+
+
+    @Synchronized
+    override fun saveNodeId(nodeId: Long?) {
+        shared { write(nodeId, highWater, clockSeq) }
+    }
+
+
+    @Synchronized
+    override fun loadHighWater(): Long = shared { highWater }
+
+
+    @Synchronized
+    override fun loadClockSeq(): Int = shared { clockSeq }
+
+
+    @Synchronized
+    override fun saveHighWater(highWater: Long, clockSeq: Int) {
+        shared { write(nodeId, highWater, clockSeq) }
+    }
+
+
+    @Synchronized
+    override fun reserveHighWater(timestamp: Long, ticks: Long, clockSeq: Int): Long = shared {
+        // 他のプロセスが予約した範囲の後ろから予約する
+        val start = if (highWater == UuidStateStore.NO_HIGH_WATER) timestamp else maxOf(timestamp, highWater)
+        write(nodeId, start + ticks, clockSeq)
+        start
+    }
+
+
+    @Synchronized
+    override fun close() {
+        channel.close()
+    }
+
+
+    /** [multiProcess]の場合はファイルをロックして読み直してから[block]を実行する。 */
+    private inline fun <T> shared(block: () -> T): T {
+        if (!multiProcess) return block()
+        return locked {
+            load()
+            block()
+        }
+    }
+
+
+    /** ファイルをロックして[block]を実行する。 */
+    private inline fun <T> locked(block: () -> T): T = synchronized(fileMonitor) {
+        val lock = channel.lock()
+        try {
+            block()
+        } finally {
+            lock.release()
+        }
+    }
+
+
+    private fun loadOrFormat() {
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION) {
+            load()
+        } else {
+            // 新しいファイルか、形式の違うファイル
+            for (i in 0 until FILE_SIZE) {
+                buffer.put(i, 0)
+            }
+            buffer.putInt(0, MAGIC)
+            buffer.putInt(4, FORMAT_VERSION)
+            buffer.force()
+        }
+    }
+
+
+    /** 古い方のレコードに書き込む。 */
+    private fun write(nodeId: Long?, highWater: Long, clockSeq: Int) {
+        val slot = if (currentSlot == 0) 1 else 0
+        val offset = slotOffset(slot)
+        val next = seqNo + 1
+        val flags = if (nodeId != null) FLAG_HAS_NODE_ID else 0
+        val node = nodeId ?: 0L
+        buffer.putLong(offset + SEQ_NO, next)
+        buffer.putLong(offset + NODE_ID, node)
+        buffer.putLong(offset + HIGH_WATER, highWater)
+        buffer.putInt(offset + CLOCK_SEQ, clockSeq)
+        buffer.putInt(offset + FLAGS, flags)
+        buffer.putLong(offset + CHECKSUM, checksum(next, node, highWater, clockSeq, flags))
+        buffer.force()
+        seqNo = next
+        currentSlot = slot
+        this.nodeId = nodeId
+        this.highWater = highWater
+        this.clockSeq = clockSeq
+    }
+
+
+    private fun load() {
+        for (slot in 0..1) {
+            val offset = slotOffset(slot)
+            val n = buffer.getLong(offset + SEQ_NO)
+            val node = buffer.getLong(offset + NODE_ID)
+            val h = buffer.getLong(offset + HIGH_WATER)
+            val c = buffer.getInt(offset + CLOCK_SEQ)
+            val flags = buffer.getInt(offset + FLAGS)
+            if (n > seqNo && buffer.getLong(offset + CHECKSUM) == checksum(n, node, h, c, flags)) {
+                seqNo = n
+                currentSlot = slot
+                nodeId = if (flags and FLAG_HAS_NODE_ID != 0) node else null
+                highWater = h
+                clockSeq = c
+            }
+        }
+    }
+
+
+    companion object {
+        private const val MAGIC = 0x55554944 // "UUID"
+        private const val FORMAT_VERSION = 2
+        private const val HEADER_SIZE = 8
+        private const val SLOT_SIZE = 40
+        private const val FILE_SIZE = HEADER_SIZE + SLOT_SIZE * 2
+
+        // レコード内の位置
+        private const val SEQ_NO = 0
+        private const val NODE_ID = 8
+        private const val HIGH_WATER = 16
+        private const val CLOCK_SEQ = 24
+        private const val FLAGS = 28
+        private const val CHECKSUM = 32
+
+        private const val FLAG_HAS_NODE_ID = 1
+
+        /** ファイルの正規のパスごとのモニター。 */
+        private val fileMonitors = ConcurrentHashMap<String, Any>()
+
+
+        private fun slotOffset(slot: Int) = HEADER_SIZE + SLOT_SIZE * slot
+
+
+        private fun checksum(seqNo: Long, nodeId: Long, highWater: Long, clockSeq: Int, flags: Int): Long {
+            val h = mix(mix(mix(-0x61c8864680b583ebL, seqNo), nodeId), highWater)
+            return mix(h, clockSeq.toLong() shl 32 or (flags.toLong() and 0xffffffffL))
+        }
+
+
+        private fun mix(h: Long, v: Long): Long {
+            val x = (h xor v) * -0x4b47d5b1a3fdb2fdL
+            return x xor (x ushr 29)
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package jp.programminglife.libpljp.android
+
+import java.util.concurrent.atomic.AtomicLong
+
+
+/**
+ * ミリ秒時刻とミリ秒内のカウンターを連結した値(tick)の払い出しをロックを取らずに管理する。
+ * [UuidV7Generator]、[UlidGenerator]、[LongIdGenerator]で共有する。
+ *
+ * tickは`ミリ秒 shl counterBits or カウンター`で、最後に払い出したtickを1つの[AtomicLong]に持ってCASで進める。
+ * カウンターが溢れた場合は次のミリ秒に繰り上がる(前借り)。前借りは時計より`maxLeadMillis`先のミリ秒までで、
+ * それを使い切ると時計が進むのを待つ。
+ * @param counterBits ミリ秒内のカウンターのビット数。
+ */
+internal class MillisSequencer(internal val counterBits: Int) {
+
+    /** 最後に払い出したtick。 */
+    internal val state = AtomicLong(Long.MIN_VALUE)
+
+
+    /**
+     * tickを最大[count]個連続で予約し、先頭のtickと予約できた数を[block]に渡す。
+     * 新しいミリ秒ではカウンターを[seed]の値から始める。
+     * 時刻より[maxLeadMillis]を超えて先のミリ秒は予約せず、1つも予約できなければ[Thread.yield]して[nextMillis]で
+     * 読み直した時刻でやり直す。前回のミリ秒がそれより先にある場合は時計が巻き戻ったものとして、待たずに
+     * 前回のミリ秒を時刻の代わりにする。
+     * @param millis 最初に使うミリ秒時刻。
+     * @return 予約できた数。
+     */
+    inline fun reserve(
+            count: Int,
+            maxLeadMillis: Long,
+            millis: Long,
+            nextMillis: () -> Long,
+            seed: () -> Long,
+            block: (first: Long, granted: Int) -> Unit
+    ): Int {
+        val bits = counterBits
+        var now = millis
+        while (true) {
+            val seedTick = now shl bits or seed()
+            while (true) {
+                val last = state.get()
+                val first = if (seedTick > last) seedTick else last + 1
+                // 前借りできる範囲より先まで進んでいるのは時計が巻き戻った場合なので、待たずに前回のミリ秒から続ける
+                val lastMillis = last shr bits
+                val base = if (lastMillis - maxLeadMillis > now) lastMillis else now
+                val limit = base + maxLeadMillis + 1 shl bits
+                if (first >= limit) break
+                val granted = minOf(count.toLong(), limit - first).toInt()
+                if (state.compareAndSet(last, first + granted - 1)) {
+                    block(first, granted)
+                    return granted
+                }
+            }
+            Thread.yield()
+            now = nextMillis()
+        }
+    }
+
+}
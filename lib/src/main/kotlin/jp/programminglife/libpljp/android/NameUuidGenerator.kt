@@ -0,0 +1,202 @@
+package jp.programminglife.libpljp.android
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.UUID
+
+
+/**
+ * 名前から決まるVersion3 (MD5) またはVersion5 (SHA-1) のUUIDを生成する。
+ *
+ * [UUID.nameUUIDFromBytes]と違い、[MessageDigest]はスレッドごとに1つ作って使い回す。
+ * [CharSequence]の名前は文字列やバイト配列を作らずに、スレッドごとの作業用の配列へUTF-8で少しずつ変換して
+ * ハッシュに渡す。UTF-8にできない単独のサロゲートは[String.toByteArray]と同じく'?'にする。
+ * このクラスはスレッドセーフ。
+ * @param namespace 名前空間。RFC 4122のとおり名前の前に連結してハッシュする。nullの場合は連結しないので、
+ * [version]が[Version.VERSION3]なら[UUID.nameUUIDFromBytes]と同じUUIDになる。
+ */
+class NameUuidGenerator(
+        val namespace: UUID?,
+        val version: Version = Version.VERSION5
+) {
+    private val namespaceBytes = namespace?.let { UuidCompactCodec.toBytes(it) }
+    private val states = if (version == Version.VERSION3) md5States else sha1States
+
+
+    fun generate(name: CharSequence): UUID {
+        var uuid: UUID? = null
+        generateFrom({ updateUtf8(it, name) }) { m, l -> uuid = UUID(m, l) }
+        return uuid!!
+    }
+
+
+    fun generate(name: ByteArray, offset: Int = 0, length: Int = name.size - offset): UUID {
+        require(offset >= 0 && length >= 0 && offset + length <= name.size) {
+            "offset=$offset, length=$length, name.size=${name.size}"
+        }
+        var uuid: UUID? = null
+        generateFrom({ it.digest.update(name, offset, length) }) { m, l -> uuid = UUID(m, l) }
+        return uuid!!
+    }
+
+
+    /** [name]の残りの部分を名前にする。[name]の位置は末尾まで進む。 */
+    fun generate(name: ByteBuffer): UUID {
+        var uuid: UUID? = null
+        generateFrom({ it.digest.update(name) }) { m, l -> uuid = UUID(m, l) }
+        return uuid!!
+    }
+
+
+    /** [name]のUUIDを生成して[sink]に渡す。[UUID]のインスタンスは作らない。 */
+    fun generateTo(name: CharSequence, sink: UuidSink) {
+        generateFrom({ updateUtf8(it, name) }, sink::accept)
+    }
+
+
+    /** [name]の残りの部分のUUIDを生成して[sink]に渡す。[name]の位置は末尾まで進む。 */
+    fun generateTo(name: ByteBuffer, sink: UuidSink) {
+        generateFrom({ it.digest.update(name) }, sink::accept)
+    }
+
+
+    /**
+     * [names]のそれぞれのUUIDを生成して、上位64ビットを[msb]、下位64ビットを[lsb]の[offset]以降に書き込む。
+     * スレッドごとの状態は最初に1回だけ取り出す。
+     */
+    fun generateAll(names: Array<out CharSequence>, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+        checkArrays(names.size, msb, lsb, offset)
+        val state = states.get()!!
+        for (i in names.indices) {
+            val name = names[i]
+            generateWith(state, { updateUtf8(it, name) }) { m, l ->
+                msb[offset + i] = m
+                lsb[offset + i] = l
+            }
+        }
+    }
+
+
+    /** バイト配列の名前の[generateAll]。 */
+    fun generateAll(names: Array<out ByteArray>, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+        checkArrays(names.size, msb, lsb, offset)
+        val state = states.get()!!
+        for (i in names.indices) {
+            val name = names[i]
+            generateWith(state, { it.digest.update(name) }) { m, l ->
+                msb[offset + i] = m
+                lsb[offset + i] = l
+            }
+        }
+    }
+
+
+    private inline fun generateFrom(update: (State) -> Unit, sink: (msb: Long, lsb: Long) -> Unit) {
+        generateWith(states.get()!!, update, sink)
+    }
+
+
+    private inline fun generateWith(state: State, update: (State) -> Unit, sink: (msb: Long, lsb: Long) -> Unit) {
+        val digest = state.digest
+        namespaceBytes?.let { digest.update(it) }
+        update(state)
+        val out = state.out
+        digest.digest(out, 0, out.size)
+        val m = getLong(out, 0) and 0xf000L.inv() or version.bits
+        val l = getLong(out, 8) and 0x3fffffffffffffffL or Long.MIN_VALUE
+        sink(m, l)
+    }
+
+
+    /** [name]をUTF-8にして作業用の配列に溜め、いっぱいになるたびに[State.digest]に渡す。 */
+    private fun updateUtf8(state: State, name: CharSequence) {
+        val buf = state.scratch
+        val limit = buf.size - 4
+        var p = 0
+        var i = 0
+        val n = name.length
+        while (i < n) {
+            if (p > limit) {
+                state.digest.update(buf, 0, p)
+                p = 0
+            }
+            val c = name[i++].code
+            when {
+                c < 0x80 -> buf[p++] = c.toByte()
+                c < 0x800 -> {
+                    buf[p++] = (0xc0 or (c ushr 6)).toByte()
+                    buf[p++] = (0x80 or (c and 0x3f)).toByte()
+                }
+                c in 0xd800..0xdbff && i < n && name[i].code in 0xdc00..0xdfff -> {
+                    val cp = 0x10000 + ((c - 0xd800) shl 10) + (name[i++].code - 0xdc00)
+                    buf[p++] = (0xf0 or (cp ushr 18)).toByte()
+                    buf[p++] = (0x80 or (cp ushr 12 and 0x3f)).toByte()
+                    buf[p++] = (0x80 or (cp ushr 6 and 0x3f)).toByte()
+                    buf[p++] = (0x80 or (cp and 0x3f)).toByte()
+                }
+                c in 0xd800..0xdfff -> buf[p++] = '?'.code.toByte()
+                else -> {
+                    buf[p++] = (0xe0 or (c ushr 12)).toByte()
+                    buf[p++] = (0x80 or (c ushr 6 and 0x3f)).toByte()
+                    buf[p++] = (0x80 or (c and 0x3f)).toByte()
+                }
+            }
+        }
+        state.digest.update(buf, 0, p)
+    }
+
+
+    enum class Version(internal val algorithm: String, internal val bits: Long) {
+        /** MD5 */
+        VERSION3("MD5", 0x3000L),
+        /** SHA-1 */
+        VERSION5("SHA-1", 0x5000L)
+    }
+
+
+    /** スレッドごとのハッシュと作業用の配列。 */
+    private class State(algorithm: String) {
+        val digest: MessageDigest = MessageDigest.getInstance(algorithm)
+        val scratch = ByteArray(SCRATCH_SIZE)
+        /** ハッシュ値の出力先。SHA-1の20バイト。 */
+        val out = ByteArray(20)
+    }
+
+
+    companion object {
+        @JvmField
+        val NAMESPACE_DNS: UUID = UUID.fromString("6ba7b810-9dad-11d1-80b4-00c04fd430c8")
+        @JvmField
+        val NAMESPACE_URL: UUID = UUID.fromString("6ba7b811-9dad-11d1-80b4-00c04fd430c8")
+        @JvmField
+        val NAMESPACE_OID: UUID = UUID.fromString("6ba7b812-9dad-11d1-80b4-00c04fd430c8")
+        @JvmField
+        val NAMESPACE_X500: UUID = UUID.fromString("6ba7b814-9dad-11d1-80b4-00c04fd430c8")
+
+        private const val SCRATCH_SIZE = 1024
+
+        private val md5States = object : ThreadLocal<State>() {
+            override fun initialValue() = State(Version.VERSION3.algorithm)
+        }
+        private val sha1States = object : ThreadLocal<State>() {
+            override fun initialValue() = State(Version.VERSION5.algorithm)
+        }
+
+
+        private fun getLong(src: ByteArray, offset: Int): Long {
+            var v = 0L
+            for (i in offset until offset + 8) {
+                v = v shl 8 or (src[i].toLong() and 0xffL)
+            }
+            return v
+        }
+
+
+        private fun checkArrays(size: Int, msb: LongArray, lsb: LongArray, offset: Int) {
+            require(offset >= 0 && offset + size <= msb.size && offset + size <= lsb.size) {
+                "size=$size, offset=$offset, msb.size=${msb.size}, lsb.size=${lsb.size}"
+            }
+        }
+    }
+
+}
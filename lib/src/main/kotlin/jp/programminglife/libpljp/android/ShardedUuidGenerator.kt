@@ -0,0 +1,109 @@
+package jp.programminglife.libpljp.android
+
+import java.security.SecureRandom
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+
+/**
+ * スレッドごとに別々の状態を持つ[UuidGenerator]に振り分けてUUIDを生成する。
+ *
+ * 1つの状態をCASで更新する[UuidGenerator]は、多くのコアから同時に呼ばれると状態のキャッシュラインの奪い合いになる。
+ * この生成器は[shardCount]個のシャードを持ち、各スレッドは最初に呼び出したときに割り当てられたシャードを使い続ける。
+ * シャードは[repository]のノードIDの下位ビットにシャード番号+1をXORしたサブノードIDを使うので、
+ * シャード同士や、同じノードIDで生成する通常の[UuidGenerator]とUUIDが重複することはない。
+ * そのため生成したUUIDの[UUID.node]は[repository]のノードIDとは一致しない。
+ * シャードの状態はサブノードIDごとにプロセス内で共有するので、同じリポジトリで複数の生成器を作っても重複しない。
+ * ノードIDは作成時に1回だけ読み込み、無ければ作って保存する。
+ * @param shardCount シャードの数。1 - 255。
+ * @param clock 全シャードで共有する時計。シャード間で奪い合いにならないように、デフォルトでは厳密に増加させない
+ * [HybridUuidClock]を使う。同じ時刻はシャードごとのクロックシーケンスで区別する。
+ */
+class ShardedUuidGenerator(
+        repository: UuidGenerator.UuidRepository,
+        private val shardCount: Int = Runtime.getRuntime().availableProcessors(),
+        private val version: UuidGenerator.Version = UuidGenerator.Version.VERSION1,
+        private val clock: UuidClock = HybridUuidClock(strict = false)
+) {
+    private val repository = repository as? UuidGenerator.CachedUuidRepository
+            ?: UuidGenerator.CachedUuidRepository(repository)
+    private val nextShard = AtomicInteger()
+    private val shardIndex = object : ThreadLocal<Int>() {
+        override fun initialValue(): Int = nextShard.getAndIncrement() % shardCount
+    }
+
+
+    init {
+        require(shardCount in 1..MAX_SHARD_COUNT) { "shardCount=$shardCount" }
+    }
+
+
+    @Volatile
+    private var shards: Array<UuidGenerator> = buildShards()
+
+
+    /**
+     * 現在のスレッドに割り当てたシャードで、現在時刻のUUIDを生成する。
+     */
+    fun generate(): UUID = shard().generate()
+
+
+    /**
+     * 現在のスレッドに割り当てたシャードで[UuidGenerator.generateInto]を呼ぶ。
+     */
+    fun generateInto(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset) {
+        shard().generateInto(msb, lsb, offset, length)
+    }
+
+
+    /**
+     * キャッシュしているノードIDを破棄し、リポジトリから読み直したノードIDでシャードを作り直す。
+     * @see UuidGenerator.invalidateNodeId
+     */
+    fun invalidateNodeId() {
+        repository.invalidate()
+        shards = buildShards()
+    }
+
+
+    fun epochMilli(uuid: UUID): Long = shards[0].epochMilli(uuid)
+
+
+    private fun shard(): UuidGenerator = shards[shardIndex.get()!!]
+
+
+    private fun buildShards(): Array<UuidGenerator> {
+        val nodeId = repository.loadNodeId()
+                ?: UuidGenerator.generateNodeId(SecureRandom()).also { repository.saveNodeId(it) }
+        return Array(shardCount) {
+            val subNodeId = nodeId xor (it + 1L)
+            UuidGenerator(SubNodeRepository(subNodeId), version, 0L, sequencer(subNodeId), clock)
+        }
+    }
+
+
+    /**
+     * ノードIDにシャード番号をXORしたサブノードIDを返し、保存はしない[UuidGenerator.UuidRepository]。
+     */
+    private class SubNodeRepository(private val subNodeId: Long) : UuidGenerator.UuidRepository {
+
+        override fun loadNodeId(): Long = subNodeId
+
+
+        override fun saveNodeId(nodeId: Long?) {}
+
+    }
+
+
+    companion object {
+        private const val MAX_SHARD_COUNT = 0xff
+
+        /** サブノードIDごとにプロセス内で共有する状態。 */
+        private val sequencers = ConcurrentHashMap<Long, UuidSequencer>()
+
+
+        private fun sequencer(subNodeId: Long): UuidSequencer = sequencers.getOrPut(subNodeId) { UuidSequencer() }
+    }
+
+}
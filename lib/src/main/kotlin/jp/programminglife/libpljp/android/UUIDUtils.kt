@@ -21,28 +21,43 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package jp.programminglife.libpljp.android
 
 import android.content.Context
+import android.content.SharedPreferences
 import android.os.SystemClock
 import java.security.SecureRandom
 import java.util.Calendar
 import java.util.Locale
 import java.util.TimeZone
 import java.util.UUID
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
 
 
+/**
+ * 以前のUUID生成の窓口。中身は[UuidGenerator]で、ノードIDは以前と同じ"uuid-node-id"の[SharedPreferences]の
+ * "<app-pkg>:uuid_node"に保存する。ノードIDは最初の1回だけ読み込んでキャッシュし、生成はロックを使わない。
+ * 同じ時刻でクロックシーケンスを使い切った場合は例外にせず、次のタイムスタンプを前借りする。
+ */
 @Deprecated("廃止")
 object UUIDUtils {
 
     internal val millis1582_10_15: Long
     private val rnd = SecureRandom()
-    private val nodeLock = ReentrantReadWriteLock()
-    private val clockSeqLock = Any()
-    private var lastUUIDTime = 0L
-    private var clockSeqCount = 0
-    /** 前回返したクロックシーケンスの値。  */
-    private var clockSeq = SecureRandom().nextInt() and 0x3fff
+    /** 時刻を指定して生成するときに、時計より先行してよい上限。 */
+    private const val MAX_CLOCK_LEAD_MILLIS = 1000L
+    /**
+     * [UUIDUtils]の生成器だけで使う状態。時刻を指定した生成で待たないように前借りするので、
+     * 前借りしない[UuidGenerator]とは共有しない。
+     */
+    private val sequencer = UuidSequencer()
+    @Volatile
+    private var engine: Engine? = null
+    /** 直前に使ったノードIDの生成器。同じノードIDが続く間はロックを取らない。 */
+    @Volatile
+    private var nodeEngine: NodeEngine? = null
+    /** ノードIDごとの生成器。最近使った[MAX_NODE_ENGINES]個だけ残す。 */
+    private val nodeEngines = object : LinkedHashMap<Long, UuidGenerator>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, UuidGenerator>?) =
+                size > MAX_NODE_ENGINES
+    }
+    private const val MAX_NODE_ENGINES = 16
 
     init {
         val c = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
@@ -62,6 +77,10 @@ object UUIDUtils {
     }
 
 
+    /** この端末のノードIDで、現在時刻のUUIDを生成する。 */
+    fun generate(context: Context): UUID = engine(context).generator.generate()
+
+
     /**
      * @param time ミリ秒単位の時刻
      * @param nano ミリ秒未満の時刻。ナノ秒単位。0 - 999999の範囲で指定する。
@@ -70,83 +89,91 @@ object UUIDUtils {
     fun generate(context: Context,
             time: Long = System.currentTimeMillis(),
             nano: Long = SystemClock.elapsedRealtimeNanos()): UUID {
-        val arr = generateLongArray(context, time, nano)
-        return UUID(arr[0], arr[1])
+        return engine(context).generator.generate(time, nano)
     }
 
 
+    /** ノードIDを指定して、現在時刻のUUIDを生成する。 */
+    fun generate(node: Long): UUID = nodeEngine(node).generate()
+
+
     fun generate(node: Long,
             time: Long = System.currentTimeMillis(),
             nano: Long = SystemClock.elapsedRealtimeNanos()): UUID {
-        val arr = generateLongArray(node, time, nano)
-        return UUID(arr[0], arr[1])
+        return nodeEngine(node).generate(time, nano)
     }
 
 
-    private fun generateLongArray(context: Context, time: Long, nano: Long): LongArray {
-        val node = getDeviceNodeId(context)
-        return generateLongArray(node, time, nano)
-    }
-
-
-    private fun generateLongArray(node: Long, time: Long, nano: Long): LongArray {
-        val clockSeq = nextClockSeq(time)
-        val uuidTime = (time - millis1582_10_15) * 10000 + ((nano / 100) % 10000)
-        return makeUUIDVersion1(uuidTime, clockSeq, node)
+    /**
+     * UUIDのnode値を返す。この端末のnode値が決定していればそれを返す。
+     * node値は"uuid-node-id"SharedPreferencesに記録される。
+     */
+    fun getDeviceNodeId(context: Context): Long = engine(context).nodeId
+
+
+    /** アプリのノードIDを読み込んだ[Engine]。ノードIDがまだ無ければ作って保存する。 */
+    private fun engine(context: Context): Engine {
+        val packageName = context.applicationInfo.packageName
+        engine?.takeIf { it.packageName == packageName }?.let { return it }
+        synchronized(this) {
+            engine?.takeIf { it.packageName == packageName }?.let { return it }
+            val preferences = context.getSharedPreferences("uuid-node-id", Context.MODE_PRIVATE)
+            val repository = LegacyNodeIdRepository(preferences, "$packageName:uuid_node")
+            val nodeId = repository.loadNodeId()
+                    ?: (rnd.nextLong() and 0xffffffffffffL or 0x010000000000L).also { repository.saveNodeId(it) }
+            return Engine(packageName, nodeId, newGenerator(nodeId)).also { engine = it }
+        }
     }
 
 
     /**
-     * UUIDのnode値を返す。この端末のnode値が決定していればそれを返す。
-     * node値は"uuid-node-id"SharedPreferencesに記録される。
+     * [node]で生成する[UuidGenerator]。ノードIDごとにキャッシュするので、複数のノードIDを交互に使っても作り直さない。
+     * キャッシュから外れて作り直しても、状態は[sequencer]で共有しているので重複しない。
      */
-    fun getDeviceNodeId(context: Context): Long {
-        val sp = context.getSharedPreferences("uuid-node-id", Context.MODE_PRIVATE)
-        return nodeLock.read {
-            val key = context.applicationInfo.packageName + ":uuid_node"
-            sp.getLong(key, 0L).takeIf { it != 0L } ?: let {
-                nodeLock.write {
-                    (rnd.nextLong() and 0xffffffffffffL or 0x010000000000L).also {
-                        val editor = sp.edit()
-                        editor.putLong(key, it)
-                        editor.apply()
-                    }
-                }
-            }
+    private fun nodeEngine(node: Long): UuidGenerator {
+        nodeEngine?.takeIf { it.nodeId == node }?.let { return it.generator }
+        synchronized(this) {
+            val generator = nodeEngines.getOrPut(node) { newGenerator(node) }
+            nodeEngine = NodeEngine(node, generator)
+            return generator
         }
     }
 
 
-    private fun nextClockSeq(time: Long): Int {
-        synchronized(clockSeqLock) {
-            if (time == lastUUIDTime) {
-                if (clockSeqCount++ == 0x3fff)
-                    throw IllegalStateException("clock seq overflow.")
-            }
-            else {
-                lastUUIDTime = time
-                clockSeqCount = 0
-            }
-            return clockSeq++
+    private fun newGenerator(nodeId: Long) = UuidGenerator(FixedNodeIdRepository(nodeId),
+            UuidGenerator.Version.VERSION1, MAX_CLOCK_LEAD_MILLIS, sequencer, UuidClock.HYBRID)
+
+
+    private class Engine(val packageName: String, val nodeId: Long, val generator: UuidGenerator)
+
+
+    private class NodeEngine(val nodeId: Long, val generator: UuidGenerator)
+
+
+    /** 以前の形式(値が0ならノードIDなし)でノードIDを保存する[UuidGenerator.UuidRepository]。 */
+    private class LegacyNodeIdRepository(
+            private val preferences: SharedPreferences,
+            private val key: String
+    ) : UuidGenerator.UuidRepository {
+
+        override fun loadNodeId(): Long? = preferences.getLong(key, 0L).takeIf { it != 0L }
+
+
+        override fun saveNodeId(nodeId: Long?) {
+            preferences.edit().putLong(key, nodeId ?: 0L).apply()
         }
+
     }
 
 
-    /**
-     * Version1のUUIDを組み立てる。
-     * @param uuidTime UUIDのタイムスタンプ(100ns単位)。
-     * @param clockSeq 同時刻の場合に区別するためのカウント値。
-     * @param node ノードID。
-     */
-    private fun makeUUIDVersion1(uuidTime: Long, clockSeq: Int, node: Long): LongArray {
-        val timeLow = uuidTime and 0xffffffffL
-        val timeMid = uuidTime shr 32 and 0xffffL
-        val timeHighAndVersion = 0x1000L or (uuidTime shr 48 and 0xfffL)
-        val clockSeqAndVariant = 0x8000L or (clockSeq.toLong() and 0x3fffL)
-
-        val msb = timeLow shl 32 or (timeMid shl 16) or timeHighAndVersion
-        val lsb = clockSeqAndVariant shl 48 or (node and 0xffffffffffffL)
-        return longArrayOf(msb, lsb)
+    /** 決まったノードIDを返し、保存はしない[UuidGenerator.UuidRepository]。 */
+    private class FixedNodeIdRepository(private val nodeId: Long) : UuidGenerator.UuidRepository {
+
+        override fun loadNodeId(): Long = nodeId
+
+
+        override fun saveNodeId(nodeId: Long?) {}
+
     }
 
 
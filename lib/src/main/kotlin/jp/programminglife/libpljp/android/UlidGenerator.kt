@@ -0,0 +1,138 @@
+package jp.programminglife.libpljp.android
+
+
+/**
+ * ULID (48ビットのUNIXエポックのミリ秒と80ビットの乱数) を生成する。
+ *
+ * 文字列表現は[UuidCompactCodec.encodeBase32]と同じCrockfordのbase32の26文字で、文字列の順序が生成順と一致する。
+ * 乱数部の上位16ビットはミリ秒内のカウンターとして使い、新しいミリ秒では0x0000 - 0x7fffの乱数から始めて1ずつ増やす。
+ * ミリ秒とカウンターを[MillisSequencer]で払い出すので、同じプロセス内で生成したULIDはロックを
+ * 取らずに単調に増加する。カウンターが溢れた場合は次のミリ秒を前借りする。前借りは時計より[maxClockLeadMillis]先の
+ * ミリ秒までで、それを使い切ると時計が進むのを待つ。残りの64ビットは毎回新しい乱数にする。
+ * 128ビットの値は[UuidSink]や[LongArray]の上位64ビット、下位64ビットとして扱う。
+ * @param clock 時計。デフォルトは[UuidGenerator]と同じ[UuidClock.HYBRID]。
+ * @param maxClockLeadMillis 前借りしたミリ秒が時計より先行してよい量。0なら前借りしない。
+ */
+class UlidGenerator(
+        private val clock: UuidClock = UuidClock.HYBRID,
+        private val maxClockLeadMillis: Long = 1000L
+) {
+
+    init {
+        require(maxClockLeadMillis in 0L..(Int.MAX_VALUE / 10000L)) { "maxClockLeadMillis=$maxClockLeadMillis" }
+    }
+
+
+    /** 現在時刻でULIDを生成して文字列にする。 */
+    fun generateString(): String {
+        val chars = CharArray(LENGTH)
+        generateInto(chars)
+        return String(chars)
+    }
+
+
+    /** 現在時刻でULIDを生成し、[dst]の[offset]から26文字書き込む。 */
+    fun generateInto(dst: CharArray, offset: Int = 0) {
+        val random = UuidV4Generator.current().nextLong()
+        reserve(1) { first, _ -> UuidCompactCodec.encodeBase32(first, random, dst, offset) }
+    }
+
+
+    /** 現在時刻でULIDを生成して[sink]に渡す。 */
+    fun generateTo(sink: UuidSink) {
+        val random = UuidV4Generator.current().nextLong()
+        reserve(1) { first, _ -> sink.accept(first, random) }
+    }
+
+
+    /**
+     * 現在時刻で[length]個のULIDを生成し、上位64ビットを[msb]、下位64ビットを[lsb]のそれぞれ[offset]以降に書き込む。
+     * 状態の更新は前借りできる範囲ごとに1回だけ行う。
+     */
+    fun generateInto(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset) {
+        require(offset >= 0 && length >= 0 && offset + length <= msb.size && offset + length <= lsb.size) {
+            "offset=$offset, length=$length, msb.size=${msb.size}, lsb.size=${lsb.size}"
+        }
+        val random = UuidV4Generator.current()
+        var i = 0
+        while (i < length) {
+            i += reserve(length - i) { first, granted ->
+                for (k in 0 until granted) {
+                    msb[offset + i + k] = first + k
+                    lsb[offset + i + k] = random.nextLong()
+                }
+            }
+        }
+    }
+
+
+    /**
+     * [length]個のULIDを生成し、[dst]の[dstOffset]から26文字ずつ区切りなしで書き込む。
+     */
+    fun generateInto(dst: CharArray, dstOffset: Int, length: Int) {
+        require(dstOffset >= 0 && length >= 0 && dstOffset + length.toLong() * LENGTH <= dst.size) {
+            "dstOffset=$dstOffset, length=$length, dst.size=${dst.size}"
+        }
+        val random = UuidV4Generator.current()
+        var i = 0
+        while (i < length) {
+            i += reserve(length - i) { first, granted ->
+                for (k in 0 until granted) {
+                    UuidCompactCodec.encodeBase32(first + k, random.nextLong(), dst, dstOffset + (i + k) * LENGTH)
+                }
+            }
+        }
+    }
+
+
+    /**
+     * ミリ秒とカウンターを連結した上位64ビットを最大[count]個連続で予約し、先頭の値と予約できた数を[block]に渡す。
+     * 時計より[maxClockLeadMillis]を超えて先のミリ秒は予約せず、1つも予約できなければ時計が進むのを待つ。
+     * 時計が巻き戻っていて前回のミリ秒がそれより先にある場合は、前回のミリ秒を時計の代わりにする。
+     * @return 予約できた数。
+     */
+    private inline fun reserve(count: Int, block: (first: Long, granted: Int) -> Unit): Int =
+            sequencer.reserve(count, maxClockLeadMillis, currentMillis(), { currentMillis() },
+                    { UuidV4Generator.current().nextLong().ushr(64 - COUNTER_SEED_BITS) }, block)
+
+
+    private fun currentMillis() = clock.ticks() / 10000L and TIME_MASK
+
+
+    companion object {
+        /** 文字列表現の長さ。 */
+        const val LENGTH = UuidCompactCodec.BASE32_LENGTH
+        private const val COUNTER_BITS = 16
+        private const val COUNTER_SEED_BITS = 15
+        private const val TIME_MASK = 0xffffffffffffL
+
+        /** 上位64ビット(ミリ秒 shl 16 or カウンター)を払い出す。プロセス内の全ての生成器で共有する。 */
+        private val sequencer = MillisSequencer(COUNTER_BITS)
+
+
+        /** ULIDの上位64ビットからUNIXエポックのミリ秒を取り出す。 */
+        @JvmStatic
+        fun epochMilli(msb: Long): Long = msb ushr COUNTER_BITS
+
+
+        /**
+         * [src]の[offset]からの26文字のULIDを解析して[sink]に渡す。
+         * @throws IllegalArgumentException Crockfordのbase32でない文字があるか、128ビットを超えるとき。
+         */
+        @JvmStatic
+        fun parse(src: CharSequence, offset: Int, sink: UuidSink) {
+            UuidCompactCodec.decodeBase32(src, offset, sink)
+        }
+
+
+        /**
+         * ULIDの文字列を全て解析して[msb]と[lsb]の[offset]以降に書き込む。
+         * @throws IllegalArgumentException ULIDでない要素があったとき。
+         */
+        @JvmStatic
+        fun parseAll(src: CharArray, srcOffset: Int, length: Int, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+            UuidCompactCodec.decodeAllBase32(src, srcOffset, length, msb, lsb, offset)
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package jp.programminglife.libpljp.android
+
+import android.os.SystemClock
+import java.util.concurrent.atomic.AtomicLong
+
+
+/**
+ * [UuidGenerator]が使う時計。UNIXエポックからの経過時間を100ns単位で返す。
+ * テストでは固定の値や任意の列を返す実装に差し替えられる。
+ */
+fun interface UuidClock {
+
+    fun ticks(): Long
+
+
+    /**
+     * 時計の状態を進めずに現在時刻を読む。監視などでUUIDの生成に使わない時刻を読むときに使う。
+     * 読むたびに状態を進める時計はこれを上書きする。
+     */
+    fun peekTicks(): Long = ticks()
+
+
+    companion object {
+        /**
+         * 以前の[UuidGenerator]と同じ、[System.currentTimeMillis]のミリ秒に
+         * [SystemClock.elapsedRealtimeNanos]のミリ秒未満を組み合わせる時計。二つの時計は関係がないので、
+         * ミリ秒未満の部分はミリ秒と一緒に増えるとは限らない。
+         */
+        val LEGACY = UuidClock {
+            System.currentTimeMillis() * 10000L + SystemClock.elapsedRealtimeNanos() / 100L % 10000L
+        }
+
+        /**
+         * プロセスで共有する、strictでない[HybridUuidClock]。各生成器のデフォルトの時計。
+         * 同じ時刻は生成器のクロックシーケンスやカウンターで区別するので、呼び出しごとに共有の状態をCASする
+         * strictな時計にはしない。strictな時計は負荷が続くと壁時計より際限なく先に進むこともある。
+         */
+        val HYBRID: UuidClock by lazy { HybridUuidClock(strict = false) }
+    }
+
+}
+
+
+/**
+ * [SystemClock.elapsedRealtimeNanos]を一度だけ壁時計に合わせ、以降はその単調な時計で100ns単位の時刻を返す。
+ *
+ * [strict]がtrueの場合は呼び出すたびに必ず前回より大きい値を返す。同じ100nsの間に呼ばれた場合は1だけ先に進める。
+ * 壁時計がNTPなどで調整されても追従しないので、必要なら[reanchor]で合わせ直す。
+ */
+class HybridUuidClock(private val strict: Boolean = true) : UuidClock {
+
+    /** 単調な時計に足すとUNIXエポックからの100ns単位になる値。 */
+    @Volatile
+    private var base = 0L
+    private val last = AtomicLong(Long.MIN_VALUE)
+
+
+    init {
+        reanchor()
+    }
+
+
+    /**
+     * 壁時計に合わせ直す。[strict]な場合、壁時計が戻っていても返す値は前回より小さくならない。
+     */
+    fun reanchor() {
+        base = System.currentTimeMillis() * 10000L - SystemClock.elapsedRealtimeNanos() / 100L
+    }
+
+
+    override fun ticks(): Long {
+        val raw = peekTicks()
+        if (!strict) return raw
+        while (true) {
+            val prev = last.get()
+            val next = if (raw > prev) raw else prev + 1
+            if (last.compareAndSet(prev, next)) return next
+        }
+    }
+
+
+    /** 単調な時計の現在時刻。[strict]でも前回の値と比べず、状態を進めない。 */
+    override fun peekTicks(): Long = base + SystemClock.elapsedRealtimeNanos() / 100L
+
+}
@@ -0,0 +1,212 @@
+package jp.programminglife.libpljp.android
+
+import java.io.EOFException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+
+/**
+ * UUIDの列を、タイムスタンプ、クロックシーケンス、ノードIDの3つの列に分けて圧縮する。
+ *
+ * 1つの[UuidGenerator]で生成したUUIDはノードIDが同じで、クロックシーケンスはほとんど変わらず、
+ * タイムスタンプは増えていく。そこで次のように符号化する。
+ * - 形式のバージョン(1バイト)と要素数(varint)
+ * - 上位64ビット: Version1はタイムスタンプの上位から並べ直した値([UuidV6]の並び、バージョンの4ビットは1のまま)、
+ *   それ以外はそのままの値にし、前の要素との差をzigzag varintで並べる
+ * - 下位64ビットの上位16ビット(バリアントとクロックシーケンス): 前の要素との差をzigzag varintで並べる
+ * - 下位64ビットの下位48ビット(ノードID): 同じ値の連続数(varint)と値(6バイト)の組で並べる
+ *
+ * どのバージョンのUUIDも元どおりに戻せるが、縮むのは同じノードIDで時刻順に近いVersion1とVersion6だけ。
+ */
+object UuidColumnCodec {
+
+    private const val FORMAT_VERSION: Byte = 1
+    private const val NODE_MASK = 0xffffffffffffL
+    private const val BUFFER_SIZE = 8192
+    /** 残りの長さが分からないときに最初に確保する要素数。読めた分だけ倍に広げる。 */
+    private const val INITIAL_CAPACITY = 1024
+
+
+    /** [count]個のUUIDを符号化したときの最大のバイト数。 */
+    fun maxEncodedSize(count: Int): Long = 1L + 5L + count * (10L + 3L + 5L + 6L)
+
+
+    /**
+     * [msb]と[lsb]の[offset]から[length]個のUUIDを[dst]の現在位置から書き込み、位置を進める。
+     * @throws java.nio.BufferOverflowException [dst]の残りが足りないとき。[maxEncodedSize]だけあれば足りる。
+     */
+    fun encode(msb: LongArray, lsb: LongArray, offset: Int, length: Int, dst: ByteBuffer) {
+        checkArrays(msb, lsb, offset, length)
+        encodeTo(msb, lsb, offset, length) { dst.put(it) }
+    }
+
+
+    /** [msb]と[lsb]の[offset]から[length]個のUUIDを[out]に書き込む。[out]は閉じない。 */
+    fun encode(msb: LongArray, lsb: LongArray, offset: Int, length: Int, out: OutputStream) {
+        checkArrays(msb, lsb, offset, length)
+        val buf = ByteArray(BUFFER_SIZE)
+        var p = 0
+        encodeTo(msb, lsb, offset, length) {
+            if (p == buf.size) {
+                out.write(buf, 0, p)
+                p = 0
+            }
+            buf[p++] = it
+        }
+        out.write(buf, 0, p)
+    }
+
+
+    /**
+     * [src]の現在位置から読み込み、上位64ビットと下位64ビットの配列を返す。位置は符号化した値の末尾まで進む。
+     * @throws IllegalArgumentException 形式が正しくないとき。
+     */
+    fun decode(src: ByteBuffer): Pair<LongArray, LongArray> {
+        return decodeFrom({ src.remaining() }) {
+            if (!src.hasRemaining()) throw IllegalArgumentException("Truncated UUID columns.")
+            src.get()
+        }
+    }
+
+
+    /**
+     * [input]から読み込む。符号化した値の末尾より先は読まないので、1バイトずつ読む。
+     * [BufferedInputStream][java.io.BufferedInputStream]などで包んで渡すこと。
+     * @throws EOFException 途中で終わっていたとき。
+     * @throws IllegalArgumentException 形式が正しくないとき。
+     */
+    fun decode(input: InputStream): Pair<LongArray, LongArray> {
+        return decodeFrom({ -1 }) {
+            val b = input.read()
+            if (b < 0) throw EOFException()
+            b.toByte()
+        }
+    }
+
+
+    private inline fun encodeTo(msb: LongArray, lsb: LongArray, offset: Int, length: Int, put: (Byte) -> Unit) {
+        val end = offset + length
+        put(FORMAT_VERSION)
+        putVarint(length.toLong(), put)
+
+        var prev = 0L
+        for (i in offset until end) {
+            val key = timeKey(msb[i])
+            putVarint(zigzag(key - prev), put)
+            prev = key
+        }
+
+        var prevSeq = 0L
+        for (i in offset until end) {
+            val seq = lsb[i] ushr 48
+            putVarint(zigzag(seq - prevSeq), put)
+            prevSeq = seq
+        }
+
+        var i = offset
+        while (i < end) {
+            val node = lsb[i] and NODE_MASK
+            var j = i + 1
+            while (j < end && lsb[j] and NODE_MASK == node) j++
+            putVarint((j - i).toLong(), put)
+            for (shift in 40 downTo 0 step 8) {
+                put((node ushr shift).toByte())
+            }
+            i = j
+        }
+    }
+
+
+    /**
+     * @param remaining 残りのバイト数。分からない場合は負の値。
+     */
+    private inline fun decodeFrom(remaining: () -> Int, get: () -> Byte): Pair<LongArray, LongArray> {
+        if (get() != FORMAT_VERSION) throw IllegalArgumentException("Unknown UUID column format.")
+        val count = getVarint(get)
+        // 1要素あたり2バイト以上あるので、残りの半分より多い要素数は壊れている
+        val rest = remaining()
+        if (count < 0L || count > Int.MAX_VALUE || rest >= 0 && count * 2 > rest) {
+            throw IllegalArgumentException("Invalid UUID count: $count")
+        }
+        val n = count.toInt()
+        // 残りが分からない場合は要素数を信用せず、上位64ビットの列を読めた分だけ配列を広げる
+        var msb = LongArray(if (rest >= 0) n else minOf(n, INITIAL_CAPACITY))
+
+        var prev = 0L
+        for (i in 0 until n) {
+            if (i == msb.size) msb = msb.copyOf(minOf(n.toLong(), msb.size * 2L).toInt())
+            prev += unzigzag(getVarint(get))
+            msb[i] = fromTimeKey(prev)
+        }
+        val lsb = LongArray(n)
+
+        var prevSeq = 0L
+        for (i in 0 until n) {
+            prevSeq += unzigzag(getVarint(get))
+            lsb[i] = prevSeq shl 48
+        }
+
+        var i = 0
+        while (i < n) {
+            val run = getVarint(get)
+            if (run <= 0L || run > n - i) throw IllegalArgumentException("Invalid node run: $run")
+            var node = 0L
+            repeat(6) {
+                node = node shl 8 or (get().toLong() and 0xffL)
+            }
+            for (k in i until i + run.toInt()) {
+                lsb[k] = lsb[k] or node
+            }
+            i += run.toInt()
+        }
+        return Pair(msb, lsb)
+    }
+
+
+    /** Version1の上位64ビットをタイムスタンプの上位から並べ直す。バージョンの4ビットは1のまま残す。 */
+    private fun timeKey(msb: Long): Long =
+            if (msb ushr 12 and 0xfL == 1L) UuidV6.fromVersion1Msb(msb) and 0xf000L.inv() or 0x1000L else msb
+
+
+    private fun fromTimeKey(key: Long): Long =
+            if (key ushr 12 and 0xfL == 1L) UuidV6.toVersion1Msb(key) else key
+
+
+    private fun zigzag(v: Long) = v shl 1 xor (v shr 63)
+
+
+    private fun unzigzag(v: Long) = (v ushr 1) xor -(v and 1L)
+
+
+    private inline fun putVarint(value: Long, put: (Byte) -> Unit) {
+        var v = value
+        while (v and 0x7fL.inv() != 0L) {
+            put((v and 0x7fL or 0x80L).toByte())
+            v = v ushr 7
+        }
+        put(v.toByte())
+    }
+
+
+    private inline fun getVarint(get: () -> Byte): Long {
+        var v = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = get().toInt()
+            v = v or ((b and 0x7f).toLong() shl shift)
+            if (b >= 0) return v
+            shift += 7
+        }
+        throw IllegalArgumentException("Varint too long.")
+    }
+
+
+    private fun checkArrays(msb: LongArray, lsb: LongArray, offset: Int, length: Int) {
+        if (offset < 0 || length < 0 || offset + length > msb.size || offset + length > lsb.size) {
+            throw IndexOutOfBoundsException(
+                    "offset=$offset, length=$length, msb.size=${msb.size}, lsb.size=${lsb.size}")
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+package jp.programminglife.libpljp.android
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.UUID
+
+
+/**
+ * UUIDの短い表現の変換。
+ *
+ * - 16バイトのビッグエンディアン表現([writeBytes]、[readBytes])
+ * - パディングなしのbase64url表現(22文字、[encodeBase64Url]、[decodeBase64Url])
+ * - Crockfordのbase32表現(26文字、[encodeBase32]、[decodeBase32])。先頭に2ビットの0を補って上位から並べるので、
+ *   文字列の順序と128ビットの符号なし整数としての順序が一致する。
+ *
+ * どれも呼び出し側が用意した配列やバッファの指定位置に読み書きし、途中でオブジェクトを作らない。
+ */
+object UuidCompactCodec {
+
+    const val BYTES = 16
+    const val BASE64_URL_LENGTH = 22
+    const val BASE32_LENGTH = 26
+
+    private const val BASE64_URL_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+    private const val BASE32_DIGITS = "0123456789ABCDEFGHJKMNPQRSTVWXYZ"
+    private val BASE64_URL_VALUES = decodeTable(BASE64_URL_DIGITS, 64)
+    /** Crockfordのbase32の表。小文字も受け付け、I、LとOはそれぞれ1と0として読む。 */
+    private val BASE32_VALUES = decodeTable(BASE32_DIGITS + BASE32_DIGITS.lowercase(), 32).also {
+        for ((c, v) in listOf('I' to 1, 'i' to 1, 'L' to 1, 'l' to 1, 'O' to 0, 'o' to 0)) {
+            it[c.code] = v.toByte()
+        }
+    }
+
+
+    // 16バイト
+
+    /** [dst]の[offset]から16バイトのビッグエンディアンで書き込む。 */
+    fun writeBytes(msb: Long, lsb: Long, dst: ByteArray, offset: Int = 0) {
+        checkRange(dst.size, offset, BYTES.toLong())
+        putLong(msb, dst, offset)
+        putLong(lsb, dst, offset + 8)
+    }
+
+
+    /**
+     * [dst]の[index]から16バイトのビッグエンディアンで書き込む。[dst]のバイトオーダーと位置は変えない。
+     */
+    fun writeBytes(msb: Long, lsb: Long, dst: ByteBuffer, index: Int) {
+        val bigEndian = dst.order() == ByteOrder.BIG_ENDIAN
+        dst.putLong(index, if (bigEndian) msb else java.lang.Long.reverseBytes(msb))
+        dst.putLong(index + 8, if (bigEndian) lsb else java.lang.Long.reverseBytes(lsb))
+    }
+
+
+    /** [src]の[offset]からの16バイトを読んで[sink]に渡す。 */
+    fun readBytes(src: ByteArray, offset: Int, sink: UuidSink) {
+        checkRange(src.size, offset, BYTES.toLong())
+        sink.accept(getLong(src, offset), getLong(src, offset + 8))
+    }
+
+
+    /** [src]の[index]からの16バイトを読んで[sink]に渡す。[src]のバイトオーダーと位置は変えない。 */
+    fun readBytes(src: ByteBuffer, index: Int, sink: UuidSink) {
+        val bigEndian = src.order() == ByteOrder.BIG_ENDIAN
+        val msb = src.getLong(index)
+        val lsb = src.getLong(index + 8)
+        if (bigEndian) {
+            sink.accept(msb, lsb)
+        } else {
+            sink.accept(java.lang.Long.reverseBytes(msb), java.lang.Long.reverseBytes(lsb))
+        }
+    }
+
+
+    fun toBytes(uuid: UUID): ByteArray =
+            ByteArray(BYTES).also { writeBytes(uuid.mostSignificantBits, uuid.leastSignificantBits, it) }
+
+
+    fun fromBytes(src: ByteArray, offset: Int = 0): UUID {
+        checkRange(src.size, offset, BYTES.toLong())
+        return UUID(getLong(src, offset), getLong(src, offset + 8))
+    }
+
+
+    /** [length]個のUUIDを[dst]の[dstOffset]から16バイトずつ書き込む。 */
+    fun writeAllBytes(msb: LongArray, lsb: LongArray, offset: Int, length: Int, dst: ByteArray, dstOffset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(dst.size, dstOffset, length.toLong() * BYTES)
+        var p = dstOffset
+        for (i in offset until offset + length) {
+            putLong(msb[i], dst, p)
+            putLong(lsb[i], dst, p + 8)
+            p += BYTES
+        }
+    }
+
+
+    /** [src]の[srcOffset]から16バイトずつ並んだ[length]個のUUIDを読み込む。 */
+    fun readAllBytes(src: ByteArray, srcOffset: Int, length: Int, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(src.size, srcOffset, length.toLong() * BYTES)
+        var p = srcOffset
+        for (i in offset until offset + length) {
+            msb[i] = getLong(src, p)
+            lsb[i] = getLong(src, p + 8)
+            p += BYTES
+        }
+    }
+
+
+    /** [length]個のUUIDを[dst]の現在位置から16バイトのビッグエンディアンで書き込み、位置を進める。 */
+    fun writeAllBytes(msb: LongArray, lsb: LongArray, offset: Int, length: Int, dst: ByteBuffer) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(dst.remaining(), 0, length.toLong() * BYTES)
+        val start = dst.position()
+        for (i in 0 until length) {
+            writeBytes(msb[offset + i], lsb[offset + i], dst, start + i * BYTES)
+        }
+        dst.position(start + length * BYTES)
+    }
+
+
+    /** [src]の現在位置から16バイトずつ[length]個のUUIDを読み込み、位置を進める。 */
+    fun readAllBytes(src: ByteBuffer, length: Int, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(src.remaining(), 0, length.toLong() * BYTES)
+        val start = src.position()
+        val bigEndian = src.order() == ByteOrder.BIG_ENDIAN
+        for (i in 0 until length) {
+            val m = src.getLong(start + i * BYTES)
+            val l = src.getLong(start + i * BYTES + 8)
+            msb[offset + i] = if (bigEndian) m else java.lang.Long.reverseBytes(m)
+            lsb[offset + i] = if (bigEndian) l else java.lang.Long.reverseBytes(l)
+        }
+        src.position(start + length * BYTES)
+    }
+
+
+    // base64url
+
+    /** [dst]の[offset]からbase64url(パディングなし)で22文字書き込む。 */
+    fun encodeBase64Url(msb: Long, lsb: Long, dst: CharArray, offset: Int = 0) {
+        checkRange(dst.size, offset, BASE64_URL_LENGTH.toLong())
+        for (i in 0 until 21) {
+            dst[offset + i] = BASE64_URL_DIGITS[bits(msb, lsb, i * 6, 6)]
+        }
+        dst[offset + 21] = BASE64_URL_DIGITS[bits(msb, lsb, 126, 2) shl 4]
+    }
+
+
+    fun encodeBase64Url(uuid: UUID): String {
+        val chars = CharArray(BASE64_URL_LENGTH)
+        encodeBase64Url(uuid.mostSignificantBits, uuid.leastSignificantBits, chars)
+        return String(chars)
+    }
+
+
+    /**
+     * [src]の[offset]からの22文字のbase64urlを解析して[sink]に渡す。
+     * @throws IllegalArgumentException base64urlでない文字があるか、余りのビットが0でないとき。
+     */
+    fun decodeBase64Url(src: CharSequence, offset: Int, sink: UuidSink) {
+        checkRange(src.length, offset, BASE64_URL_LENGTH.toLong())
+        decodeBase64UrlFrom({ src[offset + it].code }, sink::accept)
+    }
+
+
+    fun decodeBase64Url(src: CharSequence): UUID {
+        if (src.length != BASE64_URL_LENGTH) throw IllegalArgumentException("Invalid base64url UUID: $src")
+        return decodeBase64UrlFrom({ src[it].code }) { msb, lsb -> UUID(msb, lsb) }
+    }
+
+
+    /** [length]個のUUIDを[dst]の[dstOffset]から22文字ずつ区切りなしで書き込む。 */
+    fun encodeAllBase64Url(msb: LongArray, lsb: LongArray, offset: Int, length: Int, dst: CharArray,
+            dstOffset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(dst.size, dstOffset, length.toLong() * BASE64_URL_LENGTH)
+        for (i in 0 until length) {
+            encodeBase64Url(msb[offset + i], lsb[offset + i], dst, dstOffset + i * BASE64_URL_LENGTH)
+        }
+    }
+
+
+    /** [src]の[srcOffset]から22文字ずつ並んだ[length]個のbase64urlを解析する。 */
+    fun decodeAllBase64Url(src: CharArray, srcOffset: Int, length: Int, msb: LongArray, lsb: LongArray,
+            offset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(src.size, srcOffset, length.toLong() * BASE64_URL_LENGTH)
+        for (i in 0 until length) {
+            val p = srcOffset + i * BASE64_URL_LENGTH
+            decodeBase64UrlFrom({ src[p + it].code }) { m, l ->
+                msb[offset + i] = m
+                lsb[offset + i] = l
+            }
+        }
+    }
+
+
+    // Crockford base32
+
+    /** [dst]の[offset]からCrockfordのbase32で26文字書き込む。 */
+    fun encodeBase32(msb: Long, lsb: Long, dst: CharArray, offset: Int = 0) {
+        checkRange(dst.size, offset, BASE32_LENGTH.toLong())
+        dst[offset] = BASE32_DIGITS[bits(msb, lsb, 0, 3)]
+        for (i in 1 until BASE32_LENGTH) {
+            dst[offset + i] = BASE32_DIGITS[bits(msb, lsb, i * 5 - 2, 5)]
+        }
+    }
+
+
+    fun encodeBase32(uuid: UUID): String {
+        val chars = CharArray(BASE32_LENGTH)
+        encodeBase32(uuid.mostSignificantBits, uuid.leastSignificantBits, chars)
+        return String(chars)
+    }
+
+
+    /**
+     * [src]の[offset]からの26文字のCrockfordのbase32を解析して[sink]に渡す。
+     * @throws IllegalArgumentException base32でない文字があるか、128ビットを超えるとき。
+     */
+    fun decodeBase32(src: CharSequence, offset: Int, sink: UuidSink) {
+        checkRange(src.length, offset, BASE32_LENGTH.toLong())
+        decodeBase32From({ src[offset + it].code }, sink::accept)
+    }
+
+
+    fun decodeBase32(src: CharSequence): UUID {
+        if (src.length != BASE32_LENGTH) throw IllegalArgumentException("Invalid base32 UUID: $src")
+        return decodeBase32From({ src[it].code }) { msb, lsb -> UUID(msb, lsb) }
+    }
+
+
+    /** [length]個のUUIDを[dst]の[dstOffset]から26文字ずつ区切りなしで書き込む。 */
+    fun encodeAllBase32(msb: LongArray, lsb: LongArray, offset: Int, length: Int, dst: CharArray,
+            dstOffset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(dst.size, dstOffset, length.toLong() * BASE32_LENGTH)
+        for (i in 0 until length) {
+            encodeBase32(msb[offset + i], lsb[offset + i], dst, dstOffset + i * BASE32_LENGTH)
+        }
+    }
+
+
+    /** [src]の[srcOffset]から26文字ずつ並んだ[length]個のbase32を解析する。 */
+    fun decodeAllBase32(src: CharArray, srcOffset: Int, length: Int, msb: LongArray, lsb: LongArray,
+            offset: Int = 0) {
+        checkArrays(msb, lsb, offset, length)
+        checkRange(src.size, srcOffset, length.toLong() * BASE32_LENGTH)
+        for (i in 0 until length) {
+            val p = srcOffset + i * BASE32_LENGTH
+            decodeBase32From({ src[p + it].code }) { m, l ->
+                msb[offset + i] = m
+                lsb[offset + i] = l
+            }
+        }
+    }
+
+
+    /** 128ビット(msb:lsb)の上から[start]ビット目から[n]ビット(1 - 31)を取り出す。 */
+    private fun bits(msb: Long, lsb: Long, start: Int, n: Int): Int {
+        val end = start + n
+        val v = when {
+            end <= 64 -> msb ushr (64 - end)
+            start >= 64 -> lsb ushr (128 - end)
+            else -> msb shl (end - 64) or (lsb ushr (128 - end))
+        }
+        return (v and ((1L shl n) - 1)).toInt()
+    }
+
+
+    private inline fun <R> decodeBase64UrlFrom(charAt: (index: Int) -> Int, sink: (msb: Long, lsb: Long) -> R): R {
+        var hi = 0L
+        var lo = 0L
+        for (i in 0 until 21) {
+            val v = digit(BASE64_URL_VALUES, charAt(i))
+            hi = hi shl 6 or (lo ushr 58)
+            lo = lo shl 6 or v.toLong()
+        }
+        val last = digit(BASE64_URL_VALUES, charAt(21))
+        if (last and 0xf != 0) throw IllegalArgumentException("Invalid base64url UUID.")
+        hi = hi shl 2 or (lo ushr 62)
+        lo = lo shl 2 or (last ushr 4).toLong()
+        return sink(hi, lo)
+    }
+
+
+    private inline fun <R> decodeBase32From(charAt: (index: Int) -> Int, sink: (msb: Long, lsb: Long) -> R): R {
+        val first = digit(BASE32_VALUES, charAt(0))
+        if (first > 7) throw IllegalArgumentException("Invalid base32 UUID.")
+        var hi = 0L
+        var lo = first.toLong()
+        for (i in 1 until BASE32_LENGTH) {
+            val v = digit(BASE32_VALUES, charAt(i))
+            hi = hi shl 5 or (lo ushr 59)
+            lo = lo shl 5 or v.toLong()
+        }
+        return sink(hi, lo)
+    }
+
+
+    private fun digit(table: ByteArray, c: Int): Int {
+        val v = if (c < 128) table[c].toInt() else -1
+        if (v < 0) throw IllegalArgumentException("Invalid character: ${c.toChar()}")
+        return v
+    }
+
+
+    private fun decodeTable(digits: String, radix: Int) = ByteArray(128) { -1 }.also {
+        digits.forEachIndexed { i, c -> it[c.code] = (i % radix).toByte() }
+    }
+
+
+    private fun putLong(v: Long, dst: ByteArray, offset: Int) {
+        for (i in 0 until 8) {
+            dst[offset + i] = (v ushr (56 - i * 8)).toByte()
+        }
+    }
+
+
+    private fun getLong(src: ByteArray, offset: Int): Long {
+        var v = 0L
+        for (i in 0 until 8) {
+            v = v shl 8 or (src[offset + i].toLong() and 0xffL)
+        }
+        return v
+    }
+
+
+    private fun checkArrays(msb: LongArray, lsb: LongArray, offset: Int, length: Int) {
+        checkRange(msb.size, offset, length.toLong())
+        checkRange(lsb.size, offset, length.toLong())
+    }
+
+
+    private fun checkRange(size: Int, offset: Int, length: Long) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw IndexOutOfBoundsException("size=$size, offset=$offset, length=$length")
+        }
+    }
+
+}
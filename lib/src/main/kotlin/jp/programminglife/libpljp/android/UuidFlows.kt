@@ -0,0 +1,69 @@
+package jp.programminglife.libpljp.android
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.yield
+import java.util.UUID
+
+
+/**
+ * 現在時刻のUUIDを終わりなく流すコールドな[Flow]。収集するたびに新しく生成を始める。
+ *
+ * [batchSize]個ずつクロックシーケンスをまとめて予約して生成し、1つずつ流す。
+ * クロックシーケンスを使い切った場合はスレッドを止めずにサスペンドし、時刻が進んでから続ける。
+ * 必要な数は[take][kotlinx.coroutines.flow.take]で切り取る。[Channel][kotlinx.coroutines.channels.Channel]で
+ * 受け取る場合は[produceIn][kotlinx.coroutines.flow.produceIn]を使う。
+ */
+fun UuidGenerator.asFlow(batchSize: Int = DEFAULT_BATCH_SIZE): Flow<UUID> {
+    require(batchSize > 0) { "batchSize=$batchSize" }
+    return flow {
+        val buffer = LongArray(batchSize * 2)
+        while (true) {
+            val n = generateChunk(this@asFlow, buffer, batchSize)
+            for (k in 0 until n) {
+                emit(UUID(buffer[k * 2], buffer[k * 2 + 1]))
+            }
+        }
+    }
+}
+
+
+/**
+ * 現在時刻のUUIDを[chunkSize]個ずつ[LongArray]にまとめて流すコールドな[Flow]。
+ * 配列には上位64ビットと下位64ビットを交互に並べる。要素数は[chunkSize]の2倍。
+ * 配列は毎回新しく作るので、受け取った側で保持してよい。
+ * クロックシーケンスを使い切った場合はスレッドを止めずにサスペンドする。
+ */
+fun UuidGenerator.chunkedFlow(chunkSize: Int = DEFAULT_BATCH_SIZE): Flow<LongArray> {
+    require(chunkSize > 0) { "chunkSize=$chunkSize" }
+    return flow {
+        while (true) {
+            val chunk = LongArray(chunkSize * 2)
+            var filled = 0
+            while (filled < chunkSize) {
+                filled += generateChunk(this@chunkedFlow, chunk, chunkSize - filled, filled * 2)
+            }
+            emit(chunk)
+        }
+    }
+}
+
+
+private const val DEFAULT_BATCH_SIZE = 256
+/** 続けてこの回数だけ予約できなかった場合は、[yield]ではなく[delay]で待つ。 */
+private const val YIELD_LIMIT = 16
+
+
+/**
+ * [generator]で最大[count]個のUUIDを[dst]の[offset]以降に生成する。1個以上生成できるまでサスペンドしながら繰り返す。
+ * @return 生成した数。
+ */
+private suspend fun generateChunk(generator: UuidGenerator, dst: LongArray, count: Int, offset: Int = 0): Int {
+    var failures = 0
+    while (true) {
+        val n = generator.tryGenerateInto(dst, offset, count)
+        if (n > 0) return n
+        if (++failures < YIELD_LIMIT) yield() else delay(1L)
+    }
+}
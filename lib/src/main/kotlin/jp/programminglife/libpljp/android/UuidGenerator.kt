@@ -4,20 +4,87 @@ import android.content.Context
 import android.content.SharedPreferences
 import android.os.SystemClock
 import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.withContext
+import java.nio.ByteBuffer
 import java.security.SecureRandom
 import java.util.*
-
-class UuidGenerator(private val repository: UuidRepository) {
-    private val millis1582y10m15d: Long
+import java.util.concurrent.Callable
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+
+/**
+ * Version1またはVersion6のUUIDを生成する。
+ * [repository]はノードIDを毎回読み込まないように[CachedUuidRepository]で包んで使う。
+ * [repository]のノードIDを外部で書き換えた場合は[invalidateNodeId]を呼ぶこと。
+ * @param version 生成するUUIDのバージョン。どちらのバージョンもタイムスタンプ、クロックシーケンス、ノードIDは共通。
+ * @param maxClockLeadMillis 0より大きい場合、1つのタイムスタンプのクロックシーケンスを使い切ったときに待たずに
+ * 次のタイムスタンプを前借りする。時計より先行してよい上限をミリ秒で指定する。先行量は[clockLead]で確認できる。
+ * タイムスタンプの状態はプロセス内で共有するため、前借りしない生成器も、他の生成器が前借りしている間は
+ * 先行したタイムスタンプに揃えて生成する(自分では前借りしない)。
+ * @param clock 現在時刻でUUIDを生成するときの時計。デフォルトは[UuidClock.HYBRID]。
+ */
+class UuidGenerator internal constructor(
+        repository: UuidRepository,
+        private val version: Version,
+        maxClockLeadMillis: Long,
+        private val sequencer: UuidSequencer,
+        private val clock: UuidClock
+) {
+    private val repository: CachedUuidRepository =
+            repository as? CachedUuidRepository ?: CachedUuidRepository(repository)
+    private val maxLead: Int
     private val rnd = SecureRandom()
 
 
     init {
-        val c = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
-        c.clear()
-        c.set(1582, Calendar.OCTOBER, 5)
-        millis1582y10m15d = c.timeInMillis
+        require(maxClockLeadMillis in 0L..(Int.MAX_VALUE / 10000L)) { "maxClockLeadMillis=$maxClockLeadMillis" }
+        maxLead = (maxClockLeadMillis * 10000L).toInt()
+    }
+
+
+    @JvmOverloads
+    constructor(
+            repository: UuidRepository,
+            version: Version = Version.VERSION1,
+            maxClockLeadMillis: Long = 0L,
+            clock: UuidClock = UuidClock.HYBRID
+    ) : this(repository, version, maxClockLeadMillis, processSequencer, clock)
+
+
+    /**
+     * タイムスタンプの予約済みの上限を[stateStore]に永続化する生成器を作る。
+     * 上限は[reserveMillis]ごとに1回だけ書き込み、再起動後は保存した上限より後のタイムスタンプから払い出す。
+     * [reserveMillis]は0以上100000(100秒)以下にする。
+     * @throws IllegalArgumentException [reserveMillis]が範囲外のとき。
+     * この生成器はプロセス内で共有する状態を使わないので、同じノードIDで生成する生成器はプロセス内で1つにすること。
+     */
+    @JvmOverloads
+    constructor(
+            repository: UuidRepository,
+            stateStore: UuidStateStore,
+            version: Version = Version.VERSION1,
+            maxClockLeadMillis: Long = 0L,
+            reserveMillis: Long = 1000L,
+            clock: UuidClock = UuidClock.HYBRID
+    ) : this(repository, version, maxClockLeadMillis, UuidSequencer(stateStore, checkReserveMillis(reserveMillis) * 10000L), clock)
+
+
+    /**
+     * 現在時刻でUUIDを生成する。
+     * クロックシーケンスを使い切っていた場合はスリープせず、時刻が進むまで時計を読み直して再試行する。
+     */
+    fun generate(): UUID {
+        var uuid: UUID? = null
+        while (!generateInternal(currentTimestamp(), true) { m, l ->
+                    uuid = UUID(m, l)
+                }) {
+            Thread.yield()
+        }
+        return uuid!!
     }
 
 
@@ -25,90 +92,334 @@ class UuidGenerator(private val repository: UuidRepository) {
      * @param time ミリ秒単位の時刻
      * @param nano ミリ秒未満の時刻。ナノ秒単位。0 - 999999の範囲で指定する。
      * 1000000以上の桁と下位2桁は切り捨てられる。
+     * 指定の時刻は前回のタイムスタンプに揃えずにそのまま使い、前回より前の場合はクロックシーケンスを進める。
+     * ただし[maxClockLeadMillis]で前借りしている間は、その範囲で前借りしたタイムスタンプに揃える。
+     * 指定の時刻でクロックシーケンスを使い切っていた場合は、1ミリ秒スリープしてから再試行する。
      */
     fun generate(
             time: Long = System.currentTimeMillis(),
             nano: Long = SystemClock.elapsedRealtimeNanos()
     ): UUID {
-        return synchronized(lock) {
-            var uuid: UUID? = null
-            while(uuid == null) {
-                uuid = generateInternal(repository, time, nano)
-                if (uuid == null) {
-                    Thread.sleep(1L)
-                }
+        val timestamp = toTimestamp(time, nano)
+        var uuid: UUID? = null
+        while (!generateInternal(timestamp, false) { m, l -> uuid = UUID(m, l) }) {
+            Thread.sleep(1L)
+        }
+        return uuid!!
+    }
+
+
+    /**
+     * 現在時刻でUUIDを生成して[sink]に渡す。[UUID]のインスタンスは作らない。
+     */
+    fun generateTo(sink: UuidSink) {
+        while (!generateInternal(currentTimestamp(), true, sink::accept)) {
+            Thread.yield()
+        }
+    }
+
+
+    /**
+     * 現在時刻でUUIDを生成し、[dst]の[offset]に上位64ビット、[offset]+1に下位64ビットを書き込む。
+     */
+    fun generateInto(dst: LongArray, offset: Int) {
+        require(offset >= 0 && offset <= dst.size - 2) { "offset=$offset, dst.size=${dst.size}" }
+        while (!generateInternal(currentTimestamp(), true) { m, l ->
+                    dst[offset] = m
+                    dst[offset + 1] = l
+                }) {
+            Thread.yield()
+        }
+    }
+
+
+    /**
+     * 現在時刻でUUIDを生成し、[buffer]の現在位置に16バイトで書き込んで位置を進める。
+     * [buffer]のバイトオーダーで書き込むので、標準の表現にするにはビッグエンディアン(デフォルト)にしておく。
+     */
+    fun generateInto(buffer: ByteBuffer) {
+        require(buffer.remaining() >= 16) { "buffer.remaining()=${buffer.remaining()}" }
+        while (!generateInternal(currentTimestamp(), true) { m, l ->
+                    buffer.putLong(m).putLong(l)
+                }) {
+            Thread.yield()
+        }
+    }
+
+
+    /**
+     * 現在時刻で[count]個のUUIDを生成する。
+     * @see generateInto
+     */
+    fun generate(count: Int): List<UUID> {
+        val msb = LongArray(count)
+        val lsb = LongArray(count)
+        generateInto(msb, lsb)
+        return List(count) { UUID(msb[it], lsb[it]) }
+    }
+
+
+    /**
+     * 現在時刻で[length]個のUUIDを生成し、上位64ビットを[msb]、下位64ビットを[lsb]のそれぞれ[offset]以降に書き込む。
+     * 同じタイムスタンプのクロックシーケンスをまとめて予約するため、状態の更新とノードIDの読み込みは
+     * 1回のバッチでほぼ1回で済む。1つのタイムスタンプで予約できるのは0x4000個までで、それを超える分は
+     * 時刻が進むのを待って続きを予約する。
+     */
+    fun generateInto(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset) {
+        require(offset >= 0 && length >= 0 && offset + length <= msb.size && offset + length <= lsb.size) {
+            "offset=$offset, length=$length, msb.size=${msb.size}, lsb.size=${lsb.size}"
+        }
+        val end = offset + length
+        var i = offset
+        while (i < end) {
+            val start = i
+            val granted = generateBatch(end - i) { k, m, l ->
+                msb[start + k] = m
+                lsb[start + k] = l
+            }
+            if (granted == 0) {
+                Thread.yield()
             }
-            uuid
+            i += granted
         }
     }
 
 
     /**
-     * UUIDを生成する。クロックシーケンスがオーバーフローしてこれ以上ユニークなIDの生成ができない場合はnullを返す。
-     * この場合、100ナノ秒またはシステムの時間解像度以上経過してからもう一度このメソッドを呼び出すとUUIDの生成に
-     * 成功する。
+     * 現在のタイムスタンプで最大[count]個のUUIDを生成し、[dst]の[offset]から上位64ビットと下位64ビットを交互に
+     * 書き込む。待たずに、予約できた数だけ生成する。
+     * @return 生成した数。現在のタイムスタンプのクロックシーケンスを使い切っていた場合は0。
      */
-    private fun generateInternal(repository: UuidRepository, time: Long, nano: Long): UUID? {
-        val lastNodeId = repository.loadNodeId()
-        val lastTimestamp = UuidGenerator.lastTimestamp
-        val nodeId = lastNodeId ?: generateNodeId(rnd)
-        val timestamp = (time - millis1582y10m15d) * 10000 + ((nano / 100) % 10000)
-        val clockSeq = clockSeq ?: ClockSequence(rnd).also { UuidGenerator.clockSeq = it }
-        val clockSeqValue = when {
-            lastNodeId != nodeId -> clockSeq.randomize(rnd)
-            lastTimestamp == null -> clockSeq.randomize(rnd)
-            timestamp <= lastTimestamp -> clockSeq.incrementAndGet() ?: return null
-            else -> clockSeq.get() ?: return null
+    internal fun tryGenerateInto(dst: LongArray, offset: Int, count: Int): Int {
+        require(offset >= 0 && count >= 0 && offset + count * 2L <= dst.size) {
+            "offset=$offset, count=$count, dst.size=${dst.size}"
+        }
+        return generateBatch(count) { k, m, l ->
+            dst[offset + k * 2] = m
+            dst[offset + k * 2 + 1] = l
         }
-        val uuid = makeUUIDVersion1(timestamp, clockSeqValue, nodeId)
-        UuidGenerator.lastTimestamp = timestamp
-        if (lastNodeId != nodeId) {
-            repository.saveNodeId(nodeId)
+    }
+
+
+    /**
+     * 現在のタイムスタンプのクロックシーケンスを最大[count]個まとめて予約し、生成したUUIDを[sink]に渡す。
+     * @return 生成した数。
+     */
+    private inline fun generateBatch(count: Int, sink: (index: Int, msb: Long, lsb: Long) -> Unit): Int {
+        if (count == 0) return 0
+        val lastNodeId = repository.loadNodeIdOrNone()
+        val newNode = lastNodeId == CachedUuidRepository.NO_NODE
+        val nodeId = if (newNode) repository.loadOrCreateNodeId(rnd) else lastNodeId
+        val timestamp = currentTimestamp()
+        val reserved = sequencer.reserve(timestamp, count, newNode, rnd, maxLead)
+        val granted = UuidSequencer.granted(reserved)
+        if (granted == 0) return 0
+        val timeBits = makeMsb(timestamp + UuidSequencer.lead(reserved))
+        val clockSeq = UuidSequencer.clockSeq(reserved)
+        for (k in 0 until granted) {
+            sink(k, timeBits, makeLsbVersion1(clockSeq + k, nodeId))
         }
-        return uuid.takeIf { it.size == 2 }?.let { UUID(uuid[0], uuid[1]) }
+        return granted
+    }
+
+
+    /**
+     * UUIDを生成して上位64ビットと下位64ビットを[sink]に渡す。クロックシーケンスがオーバーフローしてこれ以上
+     * ユニークなIDの生成ができない場合はfalseを返す。
+     * この場合、100ナノ秒またはシステムの時間解像度以上経過してからもう一度このメソッドを呼び出すとUUIDの生成に
+     * 成功する。
+     * @param clockDriven [timestamp]が時計から読んだ値のときtrue。[UuidSequencer.reserve]を参照。
+     */
+    private inline fun generateInternal(
+            timestamp: Long,
+            clockDriven: Boolean,
+            sink: (msb: Long, lsb: Long) -> Unit
+    ): Boolean {
+        val lastNodeId = repository.loadNodeIdOrNone()
+        val newNode = lastNodeId == CachedUuidRepository.NO_NODE
+        val nodeId = if (newNode) repository.loadOrCreateNodeId(rnd) else lastNodeId
+        val reserved = sequencer.reserve(timestamp, 1, newNode, rnd, maxLead, clockDriven)
+        if (UuidSequencer.granted(reserved) == 0) return false
+        sink(makeMsb(timestamp + UuidSequencer.lead(reserved)), makeLsbVersion1(UuidSequencer.clockSeq(reserved), nodeId))
+        return true
+    }
+
+
+    private fun toTimestamp(time: Long, nano: Long) = (time - MILLIS_1582Y10M15D) * 10000 + ((nano / 100) % 10000)
+
+
+    /** [clock]の現在時刻をUUIDのタイムスタンプ(1582年10月15日からの100ns単位)にする。 */
+    private fun currentTimestamp() = clock.ticks() - MILLIS_1582Y10M15D * 10000
+
+
+    /**
+     * 最初の生成で必要になる初期化を[executor]で先に行う。乱数の種の生成、ノードIDの読み込み
+     * ([PreferencesUuidRepository]ならファイルの読み込み完了を待つ)、時計の初期化を行う。
+     * 完了した後の[generate]はこれらを待たない。完了前に[generate]を呼んだ場合は、同じ初期化を待つことがある。
+     * @return 完了を待つための[Future]。値は初期化にかかった時間(ナノ秒)で、呼び出し元のスレッドから省けた時間の目安。
+     */
+    fun warmUp(executor: Executor = warmUpExecutor): Future<Long> {
+        val task = FutureTask(Callable { preload() })
+        executor.execute(task)
+        return task
+    }
+
+
+    /**
+     * [warmUp]と同じ初期化を[Dispatchers.IO]で行う。
+     * @return 初期化にかかった時間(ナノ秒)。
+     */
+    suspend fun preloadAsync(): Long = withContext(Dispatchers.IO) { preload() }
+
+
+    /**
+     * [warmUp]と同じ初期化を呼び出したスレッドで行う。
+     * @return 初期化にかかった時間(ナノ秒)。
+     */
+    fun preload(): Long {
+        val start = System.nanoTime()
+        rnd.nextInt()
+        repository.loadNodeIdOrNone()
+        clock.peekTicks()
+        val elapsed = System.nanoTime() - start
+        return elapsed
+    }
+
+
+    /**
+     * キャッシュしているノードIDを破棄し、次の生成時にリポジトリから読み直させる。ノードIDを入れ替えるときに呼ぶ。
+     */
+    fun invalidateNodeId() {
+        repository.invalidate()
+    }
+
+
+    /**
+     * タイムスタンプの前借りの状況を返す。時計は[UuidClock.peekTicks]で読むので、生成するUUIDに影響しない。
+     */
+    fun clockLead(): ClockLead {
+        val timestamp = clock.peekTicks() - MILLIS_1582Y10M15D * 10000
+        return ClockLead(
+                sequencer.currentLead(timestamp) * 100L,
+                sequencer.peakLead * 100L,
+                sequencer.borrowedTicks
+        )
+    }
+
+
+    private fun makeMsb(timestamp: Long) = when (version) {
+        Version.VERSION1 -> makeMsbVersion1(timestamp)
+        Version.VERSION6 -> UuidV6.makeMsb(timestamp)
     }
 
 
-    fun epochMilli(uuid: UUID): Long = uuid.timestamp() / 10000L + millis1582y10m15d
+    /**
+     * Version1またはVersion6の[uuid]の時刻をミリ秒で返す。
+     */
+    fun epochMilli(uuid: UUID): Long {
+        val timestamp = if (uuid.version() == 6) UuidV6.timestamp(uuid) else uuid.timestamp()
+        return timestamp / 10000L + MILLIS_1582Y10M15D
+    }
 
 
     companion object {
-        private val lock = Any()
+        /** 1582年10月15日0時(UTC)のUNIXエポックからのミリ秒。 */
+        internal const val MILLIS_1582Y10M15D = -12219292800000L
+        private val warmUpExecutor: Executor by lazy {
+            Executors.newSingleThreadExecutor { r ->
+                Thread(r, "UuidGenerator-warmUp").apply { isDaemon = true }
+            }
+        }
 
-        @Volatile
-        private var clockSeq: ClockSequence? = null
+        /** プロセス内の全ての[UuidGenerator]で共有するタイムスタンプとクロックシーケンスの状態。 */
+        private val processSequencer = UuidSequencer()
+        /** [multiProcess]で使う、プロセスに1つの共有ファイル。 */
+        private var multiProcessStore: MappedFileUuidStore? = null
 
-        @Volatile
-        private var lastTimestamp: Long? = null
+
+        /**
+         * 同じアプリの複数のプロセス(例えば":sync"プロセス)で、同じノードIDを使ってUUIDを生成する生成器を作る。
+         *
+         * ノードIDとタイムスタンプの状態はアプリのバックアップ対象外のディレクトリの共有ファイルに置き、
+         * [FileLock][java.nio.channels.FileLock]で排他する。各プロセスは[reserveMillis]ずつタイムスタンプの範囲を
+         * 予約して独占し、ロックを取るのは範囲を使い切ったときだけにする。他のプロセスが先の範囲を予約していた場合は
+         * その後ろから払い出すので、プロセスの数だけ時計より最大[reserveMillis]ずつ先行することがある。
+         * 先行している間に同じタイムスタンプのクロックシーケンスを使い切っても待たないように、
+         * [maxClockLeadMillis]だけ前借りを許す。
+         */
+        @JvmStatic
+        @Synchronized
+        fun multiProcess(
+                context: Context,
+                version: Version = Version.VERSION1,
+                reserveMillis: Long = 10L,
+                maxClockLeadMillis: Long = 10L
+        ): UuidGenerator {
+            val store = multiProcessStore ?: MappedFileUuidStore(context, multiProcess = true).also {
+                multiProcessStore = it
+            }
+            return UuidGenerator(store, store, version, maxClockLeadMillis, reserveMillis)
+        }
 
         internal fun getStandardUuidStateStore(context: Context) =
                 context.getSharedPreferences(context.applicationInfo.packageName+"_UuidState", Context.MODE_PRIVATE)
 
 
-        private fun generateNodeId(rnd: SecureRandom) =
+        /** 上限を予約する量の最大値。再起動後に前回の予約の範囲を全て避けられる大きさ。 */
+        private const val MAX_RESERVE_MILLIS = 100_000L
+
+        private fun checkReserveMillis(reserveMillis: Long): Long {
+            require(reserveMillis in 0L..MAX_RESERVE_MILLIS) { "reserveMillis=$reserveMillis" }
+            return reserveMillis
+        }
+
+
+        internal fun generateNodeId(rnd: SecureRandom) =
                 rnd.nextLong() and 0xffffffffffffL or 0x010000000000L
 
 
         /**
-         * Version1のUUIDを組み立てる。
+         * Version1のUUIDの上位64ビット(タイムスタンプとバージョン)を組み立てる。
          * @param uuidTime UUIDのタイムスタンプ(100ns単位)。
-         * @param clockSeq 同時刻の場合に区別するためのカウント値。
-         * @param node ノードID。
          */
-        private fun makeUUIDVersion1(uuidTime: Long, clockSeq: Int, node: Long): LongArray {
+        internal fun makeMsbVersion1(uuidTime: Long): Long {
             val timeLow = uuidTime and 0xffffffffL
             val timeMid = uuidTime shr 32 and 0xffffL
             val timeHighAndVersion = 0x1000L or (uuidTime shr 48 and 0xfffL)
-            val clockSeqAndVariant = 0x8000L or (clockSeq.toLong() and 0x3fffL)
+            return timeLow shl 32 or (timeMid shl 16) or timeHighAndVersion
+        }
+
 
-            val msb = timeLow shl 32 or (timeMid shl 16) or timeHighAndVersion
-            val lsb = clockSeqAndVariant shl 48 or (node and 0xffffffffffffL)
-            return longArrayOf(msb, lsb)
+        /**
+         * Version1のUUIDの下位64ビット(クロックシーケンス、バリアント、ノードID)を組み立てる。
+         * Version6も同じ。
+         * @param clockSeq 同時刻の場合に区別するためのカウント値。
+         * @param node ノードID。
+         */
+        internal fun makeLsbVersion1(clockSeq: Int, node: Long): Long {
+            val clockSeqAndVariant = 0x8000L or (clockSeq.toLong() and 0x3fffL)
+            return clockSeqAndVariant shl 48 or (node and 0xffffffffffffL)
         }
 
     }
 
 
+    /**
+     * タイムスタンプの前借りの状況。
+     * @property currentNanos 最後に払い出したタイムスタンプが現在時刻より先行している量(ナノ秒)。
+     * @property peakNanos これまでの先行量の最大値(ナノ秒)。
+     * @property borrowedTicks タイムスタンプを前借りした回数。
+     */
+    data class ClockLead(val currentNanos: Long, val peakNanos: Long, val borrowedTicks: Long)
+
+
+    enum class Version {
+        VERSION1,
+        /** タイムスタンプを上位から並べたVersion6。生成順にソートされる。 */
+        VERSION6,
+    }
+
+
     class ClockSequence(count: Int = 0, private var value: Int) {
 
         constructor(rnd: SecureRandom): this(0, 0) {
@@ -163,6 +474,82 @@ class UuidGenerator(private val repository: UuidRepository) {
     }
 
 
+    /**
+     * [delegate]のノードIDをメモリにキャッシュする[UuidRepository]。
+     * 最初の[loadNodeId]で[delegate]から読み込み、以降はキャッシュを返す。[saveNodeId]はノードIDが変わるときだけ
+     * [delegate]に書き込む。
+     */
+    class CachedUuidRepository(private val delegate: UuidRepository) : UuidRepository {
+
+        /** キャッシュしたノードID。未読み込みの場合は[NOT_LOADED]、ノードIDが無い場合は[NO_NODE]。 */
+        @Volatile
+        private var cache: Long = NOT_LOADED
+
+
+        override fun loadNodeId(): Long? = loadNodeIdOrNone().takeIf { it != NO_NODE }
+
+
+        /**
+         * [loadNodeId]と同じだが、ボクシングを避けるためノードIDが無い場合は[NO_NODE]を返す。
+         */
+        internal fun loadNodeIdOrNone(): Long {
+            val c = cache
+            if (c != NOT_LOADED) return c
+            return synchronized(this) {
+                if (cache == NOT_LOADED) {
+                    cache = delegate.loadNodeId() ?: NO_NODE
+                }
+                cache
+            }
+        }
+
+
+        /**
+         * ノードIDを返す。無ければ新しく作って保存する。読み込み、作成、保存を1つのロックの中で行うので、
+         * 最初の生成が複数のスレッドで重なっても作って保存するノードIDは1つだけになる。
+         */
+        internal fun loadOrCreateNodeId(rnd: SecureRandom): Long {
+            val c = cache
+            if (c != NOT_LOADED && c != NO_NODE) return c
+            return synchronized(this) {
+                if (cache == NOT_LOADED) {
+                    cache = delegate.loadNodeId() ?: NO_NODE
+                }
+                if (cache == NO_NODE) {
+                    val nodeId = generateNodeId(rnd)
+                    delegate.saveNodeId(nodeId)
+                    cache = nodeId
+                }
+                cache
+            }
+        }
+
+
+        override fun saveNodeId(nodeId: Long?) {
+            val value = nodeId ?: NO_NODE
+            synchronized(this) {
+                if (cache == value) return
+                delegate.saveNodeId(nodeId)
+                cache = value
+            }
+        }
+
+
+        /** キャッシュを破棄する。次の[loadNodeId]で[delegate]から読み直す。 */
+        fun invalidate() {
+            cache = NOT_LOADED
+        }
+
+
+        internal companion object {
+            /** ノードIDは48ビットなので、負の値を番兵に使う。 */
+            const val NOT_LOADED = Long.MIN_VALUE
+            const val NO_NODE = Long.MIN_VALUE + 1
+        }
+
+    }
+
+
     /**
      * 指定の[SharedPreferences]にステートを保存する[UuidRepository]を作成する。
      */
@@ -0,0 +1,65 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * UUIDの集合。[java.util.HashSet]と違い、要素を[UUID]のインスタンスではなく2つの[LongArray]に持つ。
+ * 大量のIDの重複除去に使う。
+ * @see UuidHashTable
+ */
+class UuidHashSet(
+        expectedSize: Int = DEFAULT_EXPECTED_SIZE,
+        loadFactor: Float = DEFAULT_LOAD_FACTOR
+) : UuidHashTable(expectedSize, loadFactor) {
+
+    /** 追加した場合はtrue、既にあった場合はfalse。 */
+    fun add(msb: Long, lsb: Long): Boolean {
+        if (insert(msb, lsb) >= 0) return false
+        growIfNeeded()
+        return true
+    }
+
+
+    fun add(uuid: UUID) = add(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    /**
+     * [msb]と[lsb]の[offset]から[length]個のUUIDを追加する。
+     * @return 新しく追加した数。
+     */
+    fun addAll(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset): Int {
+        require(offset >= 0 && length >= 0 && offset + length <= msb.size && offset + length <= lsb.size) {
+            "offset=$offset, length=$length, msb.size=${msb.size}, lsb.size=${lsb.size}"
+        }
+        var added = 0
+        for (i in offset until offset + length) {
+            if (add(msb[i], lsb[i])) added++
+        }
+        return added
+    }
+
+
+    /** 削除した場合はtrue、無かった場合はfalse。 */
+    fun remove(msb: Long, lsb: Long): Boolean {
+        val i = indexOf(msb, lsb)
+        if (i < 0) return false
+        removeAt(i)
+        return true
+    }
+
+
+    fun remove(uuid: UUID) = remove(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    override fun rehash(capacity: Int) {
+        rehashKeys(capacity) { _, _ -> }
+    }
+
+
+    override fun moveValue(from: Int, to: Int) {}
+
+
+    override fun clearValue(index: Int) {}
+
+}
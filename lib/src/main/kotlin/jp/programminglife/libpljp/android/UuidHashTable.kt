@@ -0,0 +1,276 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * UUIDの上位64ビットと下位64ビットを2つの[LongArray]に並べて持つ、オープンアドレス法(線形探索)のハッシュ表。
+ * [UuidHashSet]、[UuidObjectMap]、[UuidLongMap]の共通部分。
+ *
+ * [UUID]のインスタンスやエントリのオブジェクトを作らないので、1要素あたりのメモリはキーの16バイトを負荷率で割った
+ * 程度で済む。空きのスロットは全ビット0で表すため、nil UUID(全ビット0)は最後の専用スロットに置く。
+ * 削除は後ろのキーを詰め直すので、削除済みの印は残らない。
+ * スロットの数は最大2^30で、探索が終わるように1つは空けておく。それ以上のキーを追加すると[IllegalStateException]を投げる。
+ * このクラスはスレッドセーフではない。
+ */
+abstract class UuidHashTable internal constructor(expectedSize: Int, internal val loadFactor: Float) {
+
+    @PublishedApi
+    internal var msbs: LongArray
+    @PublishedApi
+    internal var lsbs: LongArray
+    /** 通常のスロットの数-1。[msbs]と[lsbs]の最後の要素(位置は[mask]+1)はnil UUIDの専用スロット。 */
+    internal var mask: Int
+    @PublishedApi
+    internal var hasNil = false
+    internal var maxFill: Int
+
+    /** 要素の数。 */
+    var size = 0
+        private set
+
+
+    init {
+        require(expectedSize >= 0) { "expectedSize=$expectedSize" }
+        require(loadFactor > 0f && loadFactor < 1f) { "loadFactor=$loadFactor" }
+        val capacity = tableSize(expectedSize, loadFactor)
+        msbs = LongArray(capacity + 1)
+        lsbs = LongArray(capacity + 1)
+        mask = capacity - 1
+        maxFill = maxFill(capacity, loadFactor)
+    }
+
+
+    fun isEmpty() = size == 0
+
+
+    fun contains(msb: Long, lsb: Long) = indexOf(msb, lsb) >= 0
+
+
+    operator fun contains(uuid: UUID) = contains(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    /** 全ての要素を削除する。テーブルの大きさは変えない。 */
+    open fun clear() {
+        if (size == 0) return
+        msbs.fill(0L)
+        lsbs.fill(0L)
+        hasNil = false
+        size = 0
+    }
+
+
+    /**
+     * 全てのキーを[action]に渡す。順序は不定。[action]の中でこの表を変更してはいけない。
+     */
+    inline fun forEachKey(action: (msb: Long, lsb: Long) -> Unit) {
+        val m = msbs
+        val l = lsbs
+        for (i in 0 until m.size - 1) {
+            if (m[i] != 0L || l[i] != 0L) action(m[i], l[i])
+        }
+        if (hasNil) action(0L, 0L)
+    }
+
+
+    /**
+     * キーを順に辿るカーソルを作る。カーソルは要素ごとにオブジェクトを作らず、[Cursor.reset]で使い回せる。
+     */
+    open fun cursor(): Cursor = Cursor()
+
+
+    /**
+     * [moveNext]で次の要素に進め、[msb]、[lsb]で現在の要素のキーを読む。
+     * 辿っている間にこの表を変更した場合の動作は不定。
+     */
+    open inner class Cursor internal constructor() {
+        internal var index = -1
+
+        /** 次の要素に進む。要素が無ければfalse。 */
+        fun moveNext(): Boolean {
+            val m = msbs
+            val l = lsbs
+            while (++index < m.size) {
+                if (index == m.size - 1) {
+                    if (hasNil) return true
+                } else if (m[index] != 0L || l[index] != 0L) {
+                    return true
+                }
+            }
+            return false
+        }
+
+        val msb: Long get() = msbs[index]
+
+        val lsb: Long get() = lsbs[index]
+
+        fun toUuid() = UUID(msb, lsb)
+
+        /** 最初の要素の前に戻す。 */
+        fun reset() {
+            index = -1
+        }
+    }
+
+
+    /** キーの位置。無ければ-1。 */
+    internal fun indexOf(msb: Long, lsb: Long): Int {
+        if (msb == 0L && lsb == 0L) return if (hasNil) mask + 1 else -1
+        val m = msbs
+        val l = lsbs
+        var i = hash(msb, lsb) and mask
+        while (true) {
+            val km = m[i]
+            val kl = l[i]
+            if (km == msb && kl == lsb) return i
+            if (km == 0L && kl == 0L) return -1
+            i = (i + 1) and mask
+        }
+    }
+
+
+    /**
+     * キーを追加する。既にあった場合はその位置、新しく追加した場合は-(位置)-1を返す。
+     * 新しく追加した場合は、値を書き込んでから[growIfNeeded]を呼ぶ。
+     * @throws IllegalStateException これ以上大きくできない表で、空きのスロットが最後の1つになっていたとき。
+     */
+    internal fun insert(msb: Long, lsb: Long): Int {
+        if (msb == 0L && lsb == 0L) {
+            if (hasNil) return mask + 1
+            hasNil = true
+            size++
+            return -(mask + 1) - 1
+        }
+        val m = msbs
+        val l = lsbs
+        var i = hash(msb, lsb) and mask
+        while (true) {
+            val km = m[i]
+            val kl = l[i]
+            if (km == msb && kl == lsb) return i
+            if (km == 0L && kl == 0L) {
+                // 空きのスロットが無くなると探索が終わらないので、最後の1つは使わない
+                if ((if (hasNil) size - 1 else size) >= mask) {
+                    throw IllegalStateException("UuidHashTable is full: size=$size")
+                }
+                m[i] = msb
+                l[i] = lsb
+                size++
+                return -i - 1
+            }
+            i = (i + 1) and mask
+        }
+    }
+
+
+    internal fun growIfNeeded() {
+        if (size > maxFill && mask + 1 < MAX_CAPACITY) rehash((mask + 1) shl 1)
+    }
+
+
+    /** [capacity]個のスロットに並べ直す。[rehashKeys]でキーを移し、値を同じ位置に移す。 */
+    internal abstract fun rehash(capacity: Int)
+
+
+    /** [from]の値を[to]に移す。 */
+    internal abstract fun moveValue(from: Int, to: Int)
+
+
+    /** [index]の値を消す。 */
+    internal abstract fun clearValue(index: Int)
+
+
+    /**
+     * キーを[capacity]個のスロットの新しい配列に移す。移したキーの古い位置と新しい位置を[move]に渡す。
+     * nil UUIDの専用スロットも移す。
+     */
+    internal inline fun rehashKeys(capacity: Int, move: (from: Int, to: Int) -> Unit) {
+        val oldM = msbs
+        val oldL = lsbs
+        val oldCapacity = mask + 1
+        val newMask = capacity - 1
+        val m = LongArray(capacity + 1)
+        val l = LongArray(capacity + 1)
+        for (i in 0 until oldCapacity) {
+            val km = oldM[i]
+            val kl = oldL[i]
+            if (km == 0L && kl == 0L) continue
+            var j = hash(km, kl) and newMask
+            while (m[j] != 0L || l[j] != 0L) {
+                j = (j + 1) and newMask
+            }
+            m[j] = km
+            l[j] = kl
+            move(i, j)
+        }
+        if (hasNil) move(oldCapacity, capacity)
+        msbs = m
+        lsbs = l
+        mask = newMask
+        maxFill = maxFill(capacity, loadFactor)
+    }
+
+
+    /** [index]のキーを削除し、後ろに続くキーを詰め直す。 */
+    internal fun removeAt(index: Int) {
+        size--
+        if (index == mask + 1) {
+            hasNil = false
+            clearValue(index)
+            return
+        }
+        val m = msbs
+        val l = lsbs
+        var pos = index
+        while (true) {
+            val last = pos
+            pos = (pos + 1) and mask
+            while (true) {
+                val km = m[pos]
+                val kl = l[pos]
+                if (km == 0L && kl == 0L) {
+                    m[last] = 0L
+                    l[last] = 0L
+                    clearValue(last)
+                    return
+                }
+                // posのキーの本来の位置がlastとposの間(巡回)でなければ、lastに詰められる
+                val slot = hash(km, kl) and mask
+                if (if (last <= pos) last >= slot || slot > pos else last >= slot && slot > pos) {
+                    m[last] = km
+                    l[last] = kl
+                    moveValue(pos, last)
+                    break
+                }
+                pos = (pos + 1) and mask
+            }
+        }
+    }
+
+
+    internal companion object {
+        const val DEFAULT_EXPECTED_SIZE = 16
+        const val DEFAULT_LOAD_FACTOR = 0.75f
+        private const val MAX_CAPACITY = 1 shl 30
+
+
+        /** 上位64ビットと下位64ビットを混ぜて、どのビットも全体に影響するようにする(MurmurHash3のfmix64)。 */
+        fun hash(msb: Long, lsb: Long): Int {
+            var h = msb * -0x61c8864680b583ebL + lsb
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+            return (h xor (h ushr 33)).toInt()
+        }
+
+
+        fun tableSize(expectedSize: Int, loadFactor: Float): Int {
+            val n = Math.ceil(expectedSize / loadFactor.toDouble()).toLong().coerceIn(4L, MAX_CAPACITY.toLong())
+            return java.lang.Long.highestOneBit(n - 1).toInt() shl 1
+        }
+
+
+        fun maxFill(capacity: Int, loadFactor: Float): Int =
+                minOf(Math.ceil(capacity * loadFactor.toDouble()).toInt(), capacity - 1)
+    }
+
+}
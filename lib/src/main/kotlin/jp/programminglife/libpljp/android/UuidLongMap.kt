@@ -0,0 +1,135 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * UUIDをキーにして[Long]の値を持つマップ。キーも値も配列に持ち、値をボクシングしない。
+ * @param noValue キーが無いときに[get]、[put]、[remove]が返す値。
+ * @see UuidHashTable
+ */
+class UuidLongMap(
+        expectedSize: Int = DEFAULT_EXPECTED_SIZE,
+        loadFactor: Float = DEFAULT_LOAD_FACTOR,
+        val noValue: Long = 0L
+) : UuidHashTable(expectedSize, loadFactor) {
+
+    @PublishedApi
+    internal var values = LongArray(msbs.size)
+
+
+    /** [msb]と[lsb]のキーの値。無ければ[noValue]。 */
+    operator fun get(msb: Long, lsb: Long): Long {
+        val i = indexOf(msb, lsb)
+        return if (i < 0) noValue else values[i]
+    }
+
+
+    operator fun get(uuid: UUID) = get(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    /**
+     * 値を設定する。
+     * @return 以前の値。無ければ[noValue]。
+     */
+    fun put(msb: Long, lsb: Long, value: Long): Long {
+        val i = insert(msb, lsb)
+        if (i >= 0) {
+            val old = values[i]
+            values[i] = value
+            return old
+        }
+        values[-i - 1] = value
+        growIfNeeded()
+        return noValue
+    }
+
+
+    fun put(uuid: UUID, value: Long) = put(uuid.mostSignificantBits, uuid.leastSignificantBits, value)
+
+
+    operator fun set(uuid: UUID, value: Long) {
+        put(uuid, value)
+    }
+
+
+    /**
+     * キーの値に[delta]を足す。キーが無ければ[noValue]に足した値を設定する。
+     * @return 足した後の値。
+     */
+    fun addTo(msb: Long, lsb: Long, delta: Long): Long {
+        val i = insert(msb, lsb)
+        if (i >= 0) {
+            values[i] += delta
+            return values[i]
+        }
+        val value = noValue + delta
+        values[-i - 1] = value
+        growIfNeeded()
+        return value
+    }
+
+
+    /**
+     * キーを削除する。
+     * @return 削除した値。無ければ[noValue]。
+     */
+    fun remove(msb: Long, lsb: Long): Long {
+        val i = indexOf(msb, lsb)
+        if (i < 0) return noValue
+        val old = values[i]
+        removeAt(i)
+        return old
+    }
+
+
+    fun remove(uuid: UUID) = remove(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    override fun clear() {
+        super.clear()
+        values.fill(0L)
+    }
+
+
+    /**
+     * 全てのキーと値を[action]に渡す。順序は不定。[action]の中でこのマップを変更してはいけない。
+     */
+    inline fun forEach(action: (msb: Long, lsb: Long, value: Long) -> Unit) {
+        val m = msbs
+        val l = lsbs
+        val v = values
+        for (i in 0 until m.size - 1) {
+            if (m[i] != 0L || l[i] != 0L) action(m[i], l[i], v[i])
+        }
+        if (hasNil) action(0L, 0L, v[m.size - 1])
+    }
+
+
+    override fun cursor() = EntryCursor()
+
+
+    /** キーに加えて[value]で現在の要素の値を読めるカーソル。 */
+    inner class EntryCursor internal constructor() : Cursor() {
+        val value: Long get() = values[index]
+    }
+
+
+    override fun rehash(capacity: Int) {
+        val old = values
+        val newValues = LongArray(capacity + 1)
+        rehashKeys(capacity) { from, to -> newValues[to] = old[from] }
+        values = newValues
+    }
+
+
+    override fun moveValue(from: Int, to: Int) {
+        values[to] = values[from]
+    }
+
+
+    override fun clearValue(index: Int) {
+        values[index] = 0L
+    }
+
+}
@@ -0,0 +1,131 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * UUIDをキーにする[Map][java.util.HashMap]。キーを[UUID]のインスタンスではなく2つの[LongArray]に持ち、
+ * エントリのオブジェクトも作らない。値にnullは使えない。
+ * @see UuidHashTable
+ */
+class UuidObjectMap<V : Any>(
+        expectedSize: Int = DEFAULT_EXPECTED_SIZE,
+        loadFactor: Float = DEFAULT_LOAD_FACTOR
+) : UuidHashTable(expectedSize, loadFactor) {
+
+    @PublishedApi
+    internal var values = arrayOfNulls<Any>(msbs.size)
+
+
+    /** [msb]と[lsb]のキーの値。無ければnull。 */
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(msb: Long, lsb: Long): V? {
+        val i = indexOf(msb, lsb)
+        return if (i < 0) null else values[i] as V
+    }
+
+
+    operator fun get(uuid: UUID) = get(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    /**
+     * 値を設定する。
+     * @return 以前の値。無ければnull。
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun put(msb: Long, lsb: Long, value: V): V? {
+        val i = insert(msb, lsb)
+        if (i >= 0) {
+            val old = values[i]
+            values[i] = value
+            return old as V
+        }
+        values[-i - 1] = value
+        growIfNeeded()
+        return null
+    }
+
+
+    fun put(uuid: UUID, value: V) = put(uuid.mostSignificantBits, uuid.leastSignificantBits, value)
+
+
+    operator fun set(uuid: UUID, value: V) {
+        put(uuid, value)
+    }
+
+
+    /** キーが無ければ[defaultValue]で作った値を設定して返す。 */
+    inline fun getOrPut(msb: Long, lsb: Long, defaultValue: () -> V): V {
+        get(msb, lsb)?.let { return it }
+        val value = defaultValue()
+        put(msb, lsb, value)
+        return value
+    }
+
+
+    /**
+     * キーを削除する。
+     * @return 削除した値。無ければnull。
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun remove(msb: Long, lsb: Long): V? {
+        val i = indexOf(msb, lsb)
+        if (i < 0) return null
+        val old = values[i]
+        removeAt(i)
+        return old as V
+    }
+
+
+    fun remove(uuid: UUID) = remove(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    override fun clear() {
+        super.clear()
+        values.fill(null)
+    }
+
+
+    /**
+     * 全てのキーと値を[action]に渡す。順序は不定。[action]の中でこのマップを変更してはいけない。
+     */
+    @Suppress("UNCHECKED_CAST")
+    inline fun forEach(action: (msb: Long, lsb: Long, value: V) -> Unit) {
+        val m = msbs
+        val l = lsbs
+        val v = values
+        for (i in 0 until m.size - 1) {
+            if (m[i] != 0L || l[i] != 0L) action(m[i], l[i], v[i] as V)
+        }
+        if (hasNil) action(0L, 0L, v[m.size - 1] as V)
+    }
+
+
+    override fun cursor() = EntryCursor()
+
+
+    /** キーに加えて[value]で現在の要素の値を読めるカーソル。 */
+    inner class EntryCursor internal constructor() : Cursor() {
+        @Suppress("UNCHECKED_CAST")
+        val value: V get() = values[index] as V
+    }
+
+
+    override fun rehash(capacity: Int) {
+        val old = values
+        val newValues = arrayOfNulls<Any>(capacity + 1)
+        rehashKeys(capacity) { from, to -> newValues[to] = old[from] }
+        values = newValues
+    }
+
+
+    override fun moveValue(from: Int, to: Int) {
+        values[to] = values[from]
+    }
+
+
+    override fun clearValue(index: Int) {
+        values[index] = null
+    }
+
+}
@@ -0,0 +1,316 @@
+package jp.programminglife.libpljp.android
+
+import java.util.Random
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.min
+
+
+/**
+ * Version1 UUIDのタイムスタンプとクロックシーケンスの払い出しをロックを取らずに管理する。
+ *
+ * 最後に払い出したタイムスタンプ、クロックシーケンスの値、同一タイムスタンプでの払い出し数を1つの[AtomicLong]に
+ * パックしてCASで更新する。タイムスタンプは[Window.origin]からの相対値(36ビット、約1.9時間分)で保持し、
+ * ウィンドウの外の時刻が来たときだけロックを取ってウィンドウを張り替える。
+ *
+ * [stateStore]を指定した場合は、払い出すタイムスタンプが保存済みの上限に達するたびに[reserveTicks]先までを
+ * 予約して保存する。起動時は前回保存した上限より後のタイムスタンプから払い出す。
+ * 保存したクロックシーケンスは予約した時点の値で、その後に払い出した値は分からない。古い状態なので、起動後は
+ * 保存した値から乱数だけ進めた値から払い出す(RFC 4122 4.2.1)。
+ * [stateStore]が他のプロセスの予約を避けて先の範囲を返した場合は、その先頭を新しい下限にする。
+ */
+internal class UuidSequencer(
+        private val stateStore: UuidStateStore? = null,
+        private val reserveTicks: Long = 0L
+) {
+
+    private val window = AtomicReference<Window?>(null)
+    private val peakLeadValue = AtomicLong()
+    private val borrowedTickCount = AtomicLong()
+    /**
+     * これまでに[reserve]に渡された`maxLead`の最大値。前借りした仮想タイムスタンプは時計よりこれ以上先行しないので、
+     * この範囲で遅れて来たタイムスタンプは前借りしない呼び出し元のものでも巻き戻りとして扱わない。
+     * 状態のCASより先に書き込む。
+     */
+    @Volatile
+    private var leadLimit = 0
+    /**
+     * 前回のプロセスや他のプロセスが払い出した可能性のない最小のタイムスタンプ。
+     * これより前のタイムスタンプはこの値に揃える。
+     */
+    @Volatile
+    private var floor: Long
+    /** 永続化した上限。払い出すタイムスタンプはこれより小さくなければならない。 */
+    @Volatile
+    private var highWater: Long
+    /** 前回のプロセスが保存したクロックシーケンス。保存していなければ負の値。 */
+    private val savedClockSeq: Int
+
+
+    init {
+        // 前回の予約の範囲に来たタイムスタンプは全て下限に揃えられるようにする
+        require(reserveTicks in 0L until MAX_FLOOR_LEAD) { "reserveTicks=$reserveTicks" }
+        val savedHighWater = stateStore?.loadHighWater() ?: UuidStateStore.NO_HIGH_WATER
+        if (stateStore == null) {
+            floor = Long.MIN_VALUE
+            highWater = Long.MAX_VALUE
+            savedClockSeq = -1
+        } else if (savedHighWater == UuidStateStore.NO_HIGH_WATER) {
+            floor = Long.MIN_VALUE
+            highWater = Long.MIN_VALUE
+            savedClockSeq = -1
+        } else {
+            floor = savedHighWater
+            highWater = savedHighWater
+            savedClockSeq = stateStore.loadClockSeq()
+        }
+    }
+
+
+    /**
+     * [timestamp]で最大[count]個のクロックシーケンスを予約する。予約した値は先頭から連続している
+     * (0x3fffの次は0)。
+     *
+     * [clockDriven]の場合、[timestamp]が前回のタイムスタンプより少しだけ前なら、時計を読んでから呼ぶまでの間に
+     * 他のスレッドが先に払い出したものとして、前回のタイムスタンプに揃える。前回のタイムスタンプは戻さないので、
+     * 1つのタイムスタンプで払い出すクロックシーケンスは0x4000個を超えない。揃える範囲([MAX_STALE_TICKS]と、
+     * このシーケンサーを使う全ての呼び出し元の[maxLead]の大きい方)を超えて前の場合だけ、時刻が巻き戻ったものとして
+     * クロックシーケンスを進める。呼び出し元が指定した時刻([clockDriven]がfalse)は、自分の[maxLead]で前借りした
+     * 範囲にしか揃えず、それより前なら巻き戻りとして扱う。他の呼び出し元の前借りや遅れには揃えない。
+     *
+     * [maxLead]が0より大きい場合、[timestamp]のクロックシーケンスを使い切ったら、前回のタイムスタンプの次の
+     * タイムスタンプ(仮想タイムスタンプ)を前借りして予約する。仮想タイムスタンプは[timestamp]より最大[maxLead]
+     * 先行し、実際の時刻が追いつけば[timestamp]に戻る。前借りしない呼び出し元も、他の呼び出し元が前借りした
+     * 仮想タイムスタンプに揃える。ただし自分では前借りせず、仮想タイムスタンプを使い切っていれば0個を返す。
+     * @param timestamp UUIDのタイムスタンプ(100ns単位)。
+     * @param randomize trueのときクロックシーケンスを乱数で初期化し直す。ノードIDが変わったときに指定する。
+     * 前回のタイムスタンプに揃える場合は、払い出し済みの値と重ならないように初期化しない。
+     * @param maxLead 仮想タイムスタンプが[timestamp]より先行してよい量(100ns単位)。0なら前借りしない。
+     * @param clockDriven [timestamp]が時計から読んだ値のときtrue。
+     * @return 先頭のクロックシーケンス、予約できた数、実際に使うタイムスタンプと[timestamp]の差をパックした値。
+     * [clockSeq]、[granted]、[lead]で取り出す。予約できた数が0の場合はクロックシーケンスを使い切っている。
+     */
+    fun reserve(
+            timestamp: Long,
+            count: Int,
+            randomize: Boolean,
+            rnd: Random,
+            maxLead: Int = 0,
+            clockDriven: Boolean = true
+    ): Long {
+        require(count > 0) { "count <= 0" }
+        require(maxLead >= 0) { "maxLead < 0" }
+        if (maxLead > leadLimit) raiseLeadLimit(maxLead)
+        while (true) {
+            // 下限より前の時刻は下限に揃える。ただし大きく巻き戻った場合はRFCどおり巻き戻りとして扱う
+            val effective = clampToFloor(timestamp)
+            val w = window.get()
+            if (w == null || !w.contains(effective)) {
+                rebase(effective, rnd)
+                continue
+            }
+            val word = w.get()
+            if (word == SEALED) {
+                Thread.yield()
+                continue
+            }
+            val rel = effective - w.origin
+            val lastRel = word ushr REL_SHIFT
+            val value = (word ushr VALUE_SHIFT).toInt() and SEQ_MASK
+            val issued = word.toInt() and SEQ_MASK
+            var nextRel = rel
+            val first: Int
+            val granted: Int
+            val nextIssued: Int
+            when {
+                rel > lastRel -> {
+                    // 新しいタイムスタンプでは前回の値をそのまま使う
+                    first = if (randomize) rnd.nextInt(SEQ_SIZE) else value
+                    granted = min(count, SEQ_SIZE)
+                    nextIssued = granted - 1
+                }
+                // 状態を読んだ後に読むので、その状態を作った呼び出し元のmaxLeadは反映されている
+                lastRel - rel <= if (clockDriven) maxOf(leadLimit.toLong(), MAX_STALE_TICKS) else maxLead.toLong() -> {
+                    // 同じタイムスタンプ。遅れて来た場合や前借りしている場合は前回のタイムスタンプに揃える
+                    nextRel = lastRel
+                    if (issued < SEQ_MASK) {
+                        granted = min(count, SEQ_MASK - issued)
+                        first = value + 1
+                        nextIssued = issued + granted
+                    } else if (lastRel + 1 - rel <= maxLead && lastRel < REL_MAX) {
+                        nextRel = lastRel + 1
+                        first = value
+                        granted = min(count, SEQ_SIZE)
+                        nextIssued = granted - 1
+                    } else {
+                        return 0L
+                    }
+                }
+                else -> {
+                    // 時刻が巻き戻った場合はクロックシーケンスを進める(RFC 4122 4.2.1)
+                    first = if (randomize) rnd.nextInt(SEQ_SIZE) else value + 1
+                    granted = min(count, SEQ_SIZE)
+                    nextIssued = granted - 1
+                }
+            }
+            val lastValue = (first + granted - 1) and SEQ_MASK
+            if (w.origin + nextRel >= highWater) {
+                extendHighWater(w.origin + nextRel, lastValue)
+                continue
+            }
+            // 上限を読んだ後に下限を読む。上限の延長で下限が上がっていれば、その間は他のプロセスの範囲
+            if (clampToFloor(w.origin + nextRel) != w.origin + nextRel) continue
+            if (w.compareAndSet(word, pack(nextRel, lastValue, nextIssued))) {
+                val lead = w.origin + nextRel - timestamp
+                if (nextRel > rel) recordLead(nextRel - rel, nextRel > lastRel)
+                return lead shl 32 or ((first and SEQ_MASK).toLong() shl 16) or granted.toLong()
+            }
+        }
+    }
+
+
+    /**
+     * 最後に払い出したタイムスタンプが[timestamp]より先行している量(100ns単位)。先行していなければ0。
+     */
+    fun currentLead(timestamp: Long): Long {
+        val w = window.get() ?: return 0L
+        val word = w.get()
+        if (word == SEALED) return 0L
+        return (w.origin + (word ushr REL_SHIFT) - timestamp).coerceAtLeast(0L)
+    }
+
+
+    /** これまでに記録した先行量の最大値(100ns単位)。 */
+    val peakLead: Long get() = peakLeadValue.get()
+
+
+    /** 仮想タイムスタンプを前借りした回数。 */
+    val borrowedTicks: Long get() = borrowedTickCount.get()
+
+
+    private fun recordLead(lead: Long, borrowed: Boolean) {
+        if (borrowed) borrowedTickCount.incrementAndGet()
+        while (true) {
+            val peak = peakLeadValue.get()
+            if (lead <= peak || peakLeadValue.compareAndSet(peak, lead)) return
+        }
+    }
+
+
+    @Synchronized
+    private fun raiseLeadLimit(maxLead: Int) {
+        if (maxLead > leadLimit) leadLimit = maxLead
+    }
+
+
+    private fun clampToFloor(timestamp: Long): Long {
+        val f = floor
+        return if (timestamp < f && f - timestamp <= MAX_FLOOR_LEAD) f else timestamp
+    }
+
+
+    /**
+     * [timestamp]を払い出せるように、[reserveTicks]先までを予約した上限を保存する。
+     * 予約した範囲が[timestamp]より先から始まる場合は下限を上げる。下限は上限より先に書き込む。
+     */
+    @Synchronized
+    private fun extendHighWater(timestamp: Long, clockSeq: Int) {
+        if (timestamp < highWater) return
+        val start = stateStore!!.reserveHighWater(timestamp, reserveTicks + 1, clockSeq)
+        if (start > timestamp) floor = maxOf(floor, start)
+        highWater = start + reserveTicks + 1
+    }
+
+
+    /**
+     * [timestamp]を含むウィンドウに張り替える。古いウィンドウは封印してから前回の状態を引き継ぐ。
+     * 新しいウィンドウに収まらない前回のタイムスタンプはウィンドウの端に丸める。丸めても新しいタイムスタンプとの
+     * 前後関係は変わらない。
+     */
+    @Synchronized
+    private fun rebase(timestamp: Long, rnd: Random) {
+        val current = window.get()
+        if (current != null && current.contains(timestamp)) return
+        val origin = timestamp - REL_MAX / 2
+        val word = if (current == null) {
+            // 前回の状態がないので、乱数のクロックシーケンスから巻き戻りとして払い出させる。
+            // 保存した値がある場合は、巻き戻りで1つ進めても保存した値に戻らない範囲の乱数だけ進める
+            val value = if (savedClockSeq >= 0) savedClockSeq + rnd.nextInt(SEQ_MASK) else rnd.nextInt(SEQ_SIZE)
+            pack(REL_MAX, value and SEQ_MASK, 0)
+        } else {
+            val last = current.seal()
+            val lastTimestamp = current.origin + (last ushr REL_SHIFT)
+            val lastRel = (lastTimestamp - origin).coerceIn(0L, REL_MAX)
+            lastRel shl REL_SHIFT or (last and SEQ_STATE_MASK)
+        }
+        window.set(Window(origin, word))
+    }
+
+
+    /**
+     * 相対タイムスタンプの基準と状態。
+     * 状態は[AtomicLongArray]の中央の要素に置き、前後の要素を詰め物にして、シャードごとの状態が同じキャッシュラインに
+     * 載らないようにしている。
+     */
+    private class Window(val origin: Long, word: Long) {
+        private val cells = AtomicLongArray(CELL_COUNT).apply { set(STATE_CELL, word) }
+
+
+        fun get() = cells.get(STATE_CELL)
+
+
+        fun compareAndSet(expect: Long, update: Long) = cells.compareAndSet(STATE_CELL, expect, update)
+
+
+        fun contains(timestamp: Long) = (timestamp - origin) in 0L..REL_MAX
+
+
+        /** これ以上CASが成功しないように封印し、封印前の値を返す。 */
+        fun seal(): Long = cells.getAndSet(STATE_CELL, SEALED)
+
+
+        companion object {
+            /** 状態の前後に64バイトずつ空ける。 */
+            private const val STATE_CELL = 8
+            private const val CELL_COUNT = STATE_CELL * 2 + 1
+        }
+
+    }
+
+
+    companion object {
+        const val SEQ_SIZE = 0x4000
+        const val SEQ_MASK = 0x3fff
+        private const val VALUE_SHIFT = 14
+        private const val REL_SHIFT = 28
+        private const val SEQ_STATE_MASK = (1L shl REL_SHIFT) - 1
+        /** 相対タイムスタンプの最大値。全ビット1は[SEALED]のために使わない。 */
+        private const val REL_MAX = (1L shl (64 - REL_SHIFT)) - 2
+        private const val SEALED = -1L
+        /**
+         * 時計を読んでから払い出すまでの遅れとみなして前回のタイムスタンプに揃える最大の量(1秒)。
+         * これ以上前のタイムスタンプは巻き戻りとして扱う。
+         */
+        private const val MAX_STALE_TICKS = 10_000_000L
+        /**
+         * 前回のプロセスの上限に揃える最大の量(約107秒)。これ以上時計が遅れている場合は巻き戻りとして扱う。
+         * 前借りの[maxLead]と合わせて[reserve]の戻り値の32ビットに収まる大きさにしている。
+         * 予約する量[reserveTicks]はこれより小さくなければならない。
+         */
+        private const val MAX_FLOOR_LEAD = Int.MAX_VALUE / 2L
+
+        private fun pack(rel: Long, value: Int, issued: Int) =
+                rel shl REL_SHIFT or (value.toLong() shl VALUE_SHIFT) or issued.toLong()
+
+        /** [reserve]の戻り値から先頭のクロックシーケンスを取り出す。 */
+        fun clockSeq(reserved: Long) = (reserved ushr 16).toInt() and SEQ_MASK
+
+        /** [reserve]の戻り値から予約できた数を取り出す。 */
+        fun granted(reserved: Long) = reserved.toInt() and 0xffff
+
+        /** [reserve]の戻り値から、実際に使うタイムスタンプが指定したタイムスタンプより先行している量を取り出す。 */
+        fun lead(reserved: Long) = reserved ushr 32
+    }
+
+}
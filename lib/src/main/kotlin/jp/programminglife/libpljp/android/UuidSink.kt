@@ -0,0 +1,9 @@
+package jp.programminglife.libpljp.android
+
+
+/**
+ * 生成したUUIDを上位64ビットと下位64ビットのまま受け取る。[java.util.UUID]のインスタンスを作らずに済む。
+ */
+fun interface UuidSink {
+    fun accept(msb: Long, lsb: Long)
+}
@@ -0,0 +1,42 @@
+package jp.programminglife.libpljp.android
+
+
+/**
+ * [UuidGenerator]のタイムスタンプの予約済みの上限(ハイウォーターマーク)とクロックシーケンスを永続化する。
+ *
+ * 生成器はUUIDごとには書き込まず、払い出すタイムスタンプが保存済みの上限に達したときだけ、
+ * 一定時間先までを予約した新しい上限を保存する。再起動後は保存済みの上限より後のタイムスタンプから払い出すので、
+ * 時計が巻き戻っていても前回のプロセスと同じUUIDを作らない。
+ */
+interface UuidStateStore {
+
+    /** 保存した上限(100ns単位のUUIDのタイムスタンプ)。保存していなければ[NO_HIGH_WATER]。 */
+    fun loadHighWater(): Long
+
+    /** 保存したクロックシーケンス(0 - 0x3fff)。保存していなければ負の値。 */
+    fun loadClockSeq(): Int
+
+    /**
+     * 上限とその時点のクロックシーケンスを保存する。戻るまでに永続化を終えていること。
+     * 保存した後に払い出したクロックシーケンスは保存しないので、生成器は読み込んだ値をそのまま再利用せず、
+     * 乱数だけ進めてから使う。
+     */
+    fun saveHighWater(highWater: Long, clockSeq: Int)
+
+
+    /**
+     * [timestamp]から[ticks]個分のタイムスタンプを予約した上限を保存し、予約した範囲の先頭を返す。
+     * 複数のプロセスで共有するストアでは、他のプロセスが予約済みの範囲と重ならないように、保存済みの上限と
+     * [timestamp]の大きい方から予約する。生成器は返された先頭より前のタイムスタンプを払い出さない。
+     */
+    fun reserveHighWater(timestamp: Long, ticks: Long, clockSeq: Int): Long {
+        saveHighWater(timestamp + ticks, clockSeq)
+        return timestamp
+    }
+
+
+    companion object {
+        const val NO_HIGH_WATER = Long.MIN_VALUE
+    }
+
+}
@@ -0,0 +1,270 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * UUIDの標準の文字列表現(8-4-4-4-12の36文字、小文字の16進数)の変換。
+ *
+ * [UUID.toString]や[UUID.fromString]と違い、16進数の表を引いて呼び出し側が用意した[CharArray]、[ByteArray]、
+ * [StringBuilder]に直接書き込み、一時的な文字列を作らない。解析は上位64ビットと下位64ビットの[Long]に直接行う。
+ * 解析で受け付けるのは36文字の標準形だけで、16進数の大文字と小文字はどちらでもよい。
+ */
+object UuidStringCodec {
+
+    /** 文字列表現の長さ。 */
+    const val LENGTH = 36
+
+    private const val HEX_DIGITS = "0123456789abcdef"
+    /** 0x00 - 0xffの各値の2桁の16進数を並べた表。 */
+    private val HEX_PAIRS = CharArray(512) { HEX_DIGITS[if (it % 2 == 0) it / 32 else it / 2 % 16] }
+    /** ASCIIコードから16進数の値を引く表。16進数でない文字は-1。 */
+    private val HEX_VALUES = ByteArray(128) {
+        when (it.toChar()) {
+            in '0'..'9' -> (it - '0'.code).toByte()
+            in 'a'..'f' -> (it - 'a'.code + 10).toByte()
+            in 'A'..'F' -> (it - 'A'.code + 10).toByte()
+            else -> -1
+        }
+    }
+
+
+    fun toString(uuid: UUID): String = toString(uuid.mostSignificantBits, uuid.leastSignificantBits)
+
+
+    fun toString(msb: Long, lsb: Long): String {
+        val chars = CharArray(LENGTH)
+        format(msb, lsb, chars)
+        return String(chars)
+    }
+
+
+    /** [dst]の[offset]から36文字書き込む。 */
+    fun format(msb: Long, lsb: Long, dst: CharArray, offset: Int = 0) {
+        checkRange(dst.size, offset, LENGTH)
+        formatTo(msb, lsb) { i, c -> dst[offset + i] = c }
+    }
+
+
+    /** [dst]の[offset]からASCIIで36バイト書き込む。 */
+    fun format(msb: Long, lsb: Long, dst: ByteArray, offset: Int = 0) {
+        checkRange(dst.size, offset, LENGTH)
+        formatTo(msb, lsb) { i, c -> dst[offset + i] = c.code.toByte() }
+    }
+
+
+    /** [dst]の末尾に36文字追加する。 */
+    fun format(msb: Long, lsb: Long, dst: StringBuilder): StringBuilder {
+        val start = dst.length
+        dst.setLength(start + LENGTH)
+        formatTo(msb, lsb) { i, c -> dst.setCharAt(start + i, c) }
+        return dst
+    }
+
+
+    /**
+     * [length]個のUUIDを[dst]の[dstOffset]から36文字ずつ区切りなしで書き込む。
+     */
+    fun formatAll(msb: LongArray, lsb: LongArray, offset: Int, length: Int, dst: CharArray, dstOffset: Int = 0) {
+        checkRange(msb.size, offset, length)
+        checkRange(lsb.size, offset, length)
+        checkRange(dst.size, dstOffset, length.toLong() * LENGTH)
+        var p = dstOffset
+        for (i in offset until offset + length) {
+            formatTo(msb[i], lsb[i]) { k, c -> dst[p + k] = c }
+            p += LENGTH
+        }
+    }
+
+
+    /** [length]個のUUIDを文字列の配列にする。 */
+    fun formatAll(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset): Array<String> {
+        checkRange(msb.size, offset, length)
+        checkRange(lsb.size, offset, length)
+        val chars = CharArray(LENGTH)
+        return Array(length) {
+            formatTo(msb[offset + it], lsb[offset + it]) { k, c -> chars[k] = c }
+            String(chars)
+        }
+    }
+
+
+    /**
+     * [src]全体を解析する。
+     * @throws IllegalArgumentException [src]が36文字の標準の文字列表現でないとき。
+     */
+    fun parse(src: CharSequence): UUID {
+        checkLength(src)
+        return parse(src, 0)
+    }
+
+
+    /**
+     * [src]の[srcOffset]からの36文字を解析する。それより後ろの文字は見ない。
+     * @throws IllegalArgumentException 標準の文字列表現でないとき。
+     */
+    fun parse(src: CharSequence, srcOffset: Int): UUID {
+        checkRange(src.length, srcOffset, LENGTH)
+        return parseFrom({ src[srcOffset + it].code }) { msb, lsb -> UUID(msb, lsb) }
+    }
+
+
+    /**
+     * [src]全体を解析して[sink]に渡す。
+     * @throws IllegalArgumentException [src]が36文字の標準の文字列表現でないとき。
+     */
+    fun parseTo(src: CharSequence, sink: UuidSink) {
+        checkLength(src)
+        parseTo(src, sink, 0)
+    }
+
+
+    /**
+     * [src]の[srcOffset]からの36文字を解析して[sink]に渡す。
+     * @throws IllegalArgumentException 標準の文字列表現でないとき。
+     */
+    fun parseTo(src: CharSequence, sink: UuidSink, srcOffset: Int) {
+        checkRange(src.length, srcOffset, LENGTH)
+        parseFrom({ src[srcOffset + it].code }, sink::accept)
+    }
+
+
+    /**
+     * [src]全体を解析して[out]の[outOffset]に上位64ビット、[outOffset]+1に下位64ビットを書き込む。
+     * @throws IllegalArgumentException [src]が36文字の標準の文字列表現でないとき。
+     */
+    fun parseInto(src: CharSequence, out: LongArray, outOffset: Int = 0) {
+        checkLength(src)
+        parseInto(src, 0, out, outOffset)
+    }
+
+
+    /**
+     * [src]の[srcOffset]からの36文字を解析して[out]の[outOffset]と[outOffset]+1に書き込む。
+     * @throws IllegalArgumentException 標準の文字列表現でないとき。
+     */
+    fun parseInto(src: CharSequence, srcOffset: Int, out: LongArray, outOffset: Int = 0) {
+        checkRange(src.length, srcOffset, LENGTH)
+        checkRange(out.size, outOffset, 2)
+        parseFrom({ src[srcOffset + it].code }) { msb, lsb ->
+            out[outOffset] = msb
+            out[outOffset + 1] = lsb
+        }
+    }
+
+
+    /**
+     * ASCIIの[src]の[srcOffset]からの36バイトを解析して[out]の[outOffset]と[outOffset]+1に書き込む。
+     * @throws IllegalArgumentException 標準の文字列表現でないとき。
+     */
+    fun parseInto(src: ByteArray, srcOffset: Int, out: LongArray, outOffset: Int = 0) {
+        checkRange(src.size, srcOffset, LENGTH)
+        checkRange(out.size, outOffset, 2)
+        parseFrom({ src[srcOffset + it].toInt() and 0xff }) { msb, lsb ->
+            out[outOffset] = msb
+            out[outOffset + 1] = lsb
+        }
+    }
+
+
+    /**
+     * [src]の文字列を全て解析して[msb]と[lsb]の[offset]以降に書き込む。
+     * @throws IllegalArgumentException 標準の文字列表現でない要素があったとき。
+     */
+    fun parseAll(src: Array<out CharSequence>, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+        checkRange(msb.size, offset, src.size)
+        checkRange(lsb.size, offset, src.size)
+        for (i in src.indices) {
+            val s = src[i]
+            checkLength(s)
+            parseFrom({ s[it].code }) { m, l ->
+                msb[offset + i] = m
+                lsb[offset + i] = l
+            }
+        }
+    }
+
+
+    /**
+     * [src]の[srcOffset]から区切りなしで並んだ[length]個の文字列表現を解析する。[formatAll]の逆。
+     * @throws IllegalArgumentException 標準の文字列表現でない要素があったとき。
+     */
+    fun parseAll(src: CharArray, srcOffset: Int, length: Int, msb: LongArray, lsb: LongArray, offset: Int = 0) {
+        checkRange(src.size, srcOffset, length.toLong() * LENGTH)
+        checkRange(msb.size, offset, length)
+        checkRange(lsb.size, offset, length)
+        var p = srcOffset
+        for (i in offset until offset + length) {
+            parseFrom({ src[p + it].code }) { m, l ->
+                msb[i] = m
+                lsb[i] = l
+            }
+            p += LENGTH
+        }
+    }
+
+
+    /** 文字列表現の[index]文字目を[put]に渡す。 */
+    private inline fun formatTo(msb: Long, lsb: Long, put: (index: Int, c: Char) -> Unit) {
+        hex(msb ushr 32, 0, 8, put)
+        put(8, '-')
+        hex(msb ushr 16, 9, 4, put)
+        put(13, '-')
+        hex(msb, 14, 4, put)
+        put(18, '-')
+        hex(lsb ushr 48, 19, 4, put)
+        put(23, '-')
+        hex(lsb, 24, 12, put)
+    }
+
+
+    /** [value]の下位[digits]桁(偶数)を16進数で[put]に渡す。 */
+    private inline fun hex(value: Long, start: Int, digits: Int, put: (index: Int, c: Char) -> Unit) {
+        var v = value
+        var i = start + digits
+        while (i > start) {
+            val b = (v and 0xffL).toInt() shl 1
+            put(--i, HEX_PAIRS[b + 1])
+            put(--i, HEX_PAIRS[b])
+            v = v ushr 8
+        }
+    }
+
+
+    private inline fun <R> parseFrom(charAt: (index: Int) -> Int, sink: (msb: Long, lsb: Long) -> R): R {
+        if (charAt(8) != '-'.code || charAt(13) != '-'.code || charAt(18) != '-'.code || charAt(23) != '-'.code) {
+            throw IllegalArgumentException("Invalid UUID string.")
+        }
+        val msb = parseHex(charAt, 0, 8) shl 32 or (parseHex(charAt, 9, 4) shl 16) or parseHex(charAt, 14, 4)
+        val lsb = parseHex(charAt, 19, 4) shl 48 or parseHex(charAt, 24, 12)
+        return sink(msb, lsb)
+    }
+
+
+    private inline fun parseHex(charAt: (index: Int) -> Int, start: Int, digits: Int): Long {
+        var v = 0L
+        for (i in start until start + digits) {
+            val c = charAt(i)
+            val d = if (c < 128) HEX_VALUES[c].toInt() else -1
+            if (d < 0) throw IllegalArgumentException("Invalid UUID string.")
+            v = v shl 4 or d.toLong()
+        }
+        return v
+    }
+
+
+    private fun checkLength(src: CharSequence) {
+        if (src.length != LENGTH) throw IllegalArgumentException("Invalid UUID string: $src")
+    }
+
+
+    private fun checkRange(size: Int, offset: Int, length: Int) = checkRange(size, offset, length.toLong())
+
+
+    private fun checkRange(size: Int, offset: Int, length: Long) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw IndexOutOfBoundsException("size=$size, offset=$offset, length=$length")
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * Version1とVersion6のUUIDを生成時刻の順に扱うためのヘルパー。
+ *
+ * [UUID.compareTo]は上位64ビットと下位64ビットを符号付きで比較し、Version1ではタイムスタンプの下位32ビットが
+ * 先頭にあるので、生成時刻の順にはならない。ここでは上位64ビットをVersion6の並び(タイムスタンプの上位から)に
+ * 直したものと下位64ビットを符号なしで比較する。Version1とVersion6は同じタイムスタンプなら同じ位置に並ぶ。
+ * それ以外のバージョンは上位64ビットをそのまま使うので、Version7は時刻順に、Version4は乱数の順に並ぶ。
+ */
+object UuidTimeOrder {
+
+    private const val LSB_MIN = Long.MIN_VALUE // バリアント10、クロックシーケンスとノードIDが0
+    private const val LSB_MAX = -0x4000000000000001L // バリアント10、クロックシーケンスとノードIDが全て1
+    private const val DIGIT_BITS = 16
+    private const val DIGIT_MASK = (1 shl DIGIT_BITS) - 1
+    /** これより少ない要素は比較ソートの方が速い。 */
+    private const val RADIX_SORT_THRESHOLD = 256
+
+
+    /**
+     * UNIXエポックからのミリ秒[epochMilli]の最初のタイムスタンプを持つ、最小のUUID。
+     * [epochMilli]以降に生成したUUIDは全て[TIME_ORDER]でこの値以上になる。
+     */
+    fun min(epochMilli: Long, version: UuidGenerator.Version = UuidGenerator.Version.VERSION1): UUID =
+            UUID(makeMsb(toTimestamp(epochMilli), version), LSB_MIN)
+
+
+    /**
+     * UNIXエポックからのミリ秒[epochMilli]の最後のタイムスタンプを持つ、最大のUUID。
+     * [epochMilli]以前に生成したUUIDは全て[TIME_ORDER]でこの値以下になる。
+     */
+    fun max(epochMilli: Long, version: UuidGenerator.Version = UuidGenerator.Version.VERSION1): UUID =
+            UUID(makeMsb(toTimestamp(epochMilli) + 9999L, version), LSB_MAX)
+
+
+    /**
+     * [fromMilli]から[toMilli]まで(両端を含む)に生成したUUIDの範囲。
+     * データベースでは上位64ビットと下位64ビットを[timeKey]と符号なしの値で保存しておけば範囲検索に使える。
+     */
+    fun range(
+            fromMilli: Long,
+            toMilli: Long,
+            version: UuidGenerator.Version = UuidGenerator.Version.VERSION1
+    ): Pair<UUID, UUID> {
+        require(fromMilli <= toMilli) { "fromMilli=$fromMilli, toMilli=$toMilli" }
+        return Pair(min(fromMilli, version), max(toMilli, version))
+    }
+
+
+    /** 生成時刻の順に並べる[Comparator]。 */
+    @JvmField
+    val TIME_ORDER: Comparator<UUID> = Comparator { a, b ->
+        compare(a.mostSignificantBits, a.leastSignificantBits, b.mostSignificantBits, b.leastSignificantBits)
+    }
+
+
+    fun compare(msb1: Long, lsb1: Long, msb2: Long, lsb2: Long): Int {
+        val c = java.lang.Long.compare(timeKey(msb1) xor Long.MIN_VALUE, timeKey(msb2) xor Long.MIN_VALUE)
+        return if (c != 0) c else java.lang.Long.compare(lsb1 xor Long.MIN_VALUE, lsb2 xor Long.MIN_VALUE)
+    }
+
+
+    /**
+     * 上位64ビットを生成時刻の順に並ぶ値にする。符号なしで比較する。
+     * Version1はVersion6の並びに変換し、それ以外はそのまま返す。
+     */
+    fun timeKey(msb: Long): Long = if (msb ushr 12 and 0xfL == 1L) UuidV6.fromVersion1Msb(msb) else msb
+
+
+    /**
+     * [msb]と[lsb]の[offset]から[length]個のUUIDを、[TIME_ORDER]の順にLSD基数ソートで並べ替える。
+     *
+     * 16ビットずつ8回の安定な分配で済み、比較を行わないので要素数に比例する時間で終わる。
+     * 全ての要素で同じ値になる桁(ノードIDやタイムスタンプの上位など)は分配を省く。
+     * 作業用に要素数の3倍の[LongArray]を確保する。
+     */
+    fun sort(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset) {
+        checkRange(msb.size, offset, length)
+        checkRange(lsb.size, offset, length)
+        if (length < 2) return
+
+        var key = LongArray(length) { timeKey(msb[offset + it]) }
+        var hi = msb.copyOfRange(offset, offset + length)
+        var lo = lsb.copyOfRange(offset, offset + length)
+        var key2 = LongArray(length)
+        var hi2 = LongArray(length)
+        var lo2 = LongArray(length)
+        val counts = IntArray(DIGIT_MASK + 1)
+
+        for (pass in 0 until 128 / DIGIT_BITS) {
+            val fromKey = pass >= 64 / DIGIT_BITS
+            val shift = pass * DIGIT_BITS % 64
+            val digits = if (fromKey) key else lo
+            counts.fill(0)
+            for (i in 0 until length) {
+                counts[(digits[i] ushr shift).toInt() and DIGIT_MASK]++
+            }
+            if (counts[(digits[0] ushr shift).toInt() and DIGIT_MASK] == length) continue
+
+            // 各値の書き込み開始位置
+            var sum = 0
+            for (d in 0..DIGIT_MASK) {
+                val c = counts[d]
+                counts[d] = sum
+                sum += c
+            }
+            for (i in 0 until length) {
+                val p = counts[(digits[i] ushr shift).toInt() and DIGIT_MASK]++
+                key2[p] = key[i]
+                hi2[p] = hi[i]
+                lo2[p] = lo[i]
+            }
+            key = key2.also { key2 = key }
+            hi = hi2.also { hi2 = hi }
+            lo = lo2.also { lo2 = lo }
+        }
+
+        System.arraycopy(hi, 0, msb, offset, length)
+        System.arraycopy(lo, 0, lsb, offset, length)
+    }
+
+
+    /**
+     * [uuids]を[TIME_ORDER]の順に並べ替える。要素数が多い場合は[sort]の基数ソートを使う。
+     */
+    fun sort(uuids: MutableList<UUID>) {
+        val n = uuids.size
+        if (n < RADIX_SORT_THRESHOLD) {
+            uuids.sortWith(TIME_ORDER)
+            return
+        }
+        val msb = LongArray(n)
+        val lsb = LongArray(n)
+        for (i in 0 until n) {
+            val uuid = uuids[i]
+            msb[i] = uuid.mostSignificantBits
+            lsb[i] = uuid.leastSignificantBits
+        }
+        sort(msb, lsb)
+        for (i in 0 until n) {
+            uuids[i] = UUID(msb[i], lsb[i])
+        }
+    }
+
+
+    private fun toTimestamp(epochMilli: Long) = (epochMilli - UuidGenerator.MILLIS_1582Y10M15D) * 10000L
+
+
+    private fun makeMsb(timestamp: Long, version: UuidGenerator.Version) = when (version) {
+        UuidGenerator.Version.VERSION1 -> UuidGenerator.makeMsbVersion1(timestamp)
+        UuidGenerator.Version.VERSION6 -> UuidV6.makeMsb(timestamp)
+    }
+
+
+    private fun checkRange(size: Int, offset: Int, length: Int) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw IndexOutOfBoundsException("size=$size, offset=$offset, length=$length")
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package jp.programminglife.libpljp.android
+
+import java.nio.ByteBuffer
+import java.security.SecureRandom
+import java.util.UUID
+
+
+/**
+ * Version4 (乱数) のUUIDを生成する。
+ *
+ * [UUID.randomUUID]は1個ごとに[SecureRandom.nextBytes]を呼ぶが、この生成器は[blockSize]バイトの乱数を
+ * 1回の[SecureRandom.nextBytes]でまとめて取り出しておき、16バイトずつ使う。乱数は[SecureRandom]のものをそのまま
+ * 使うので、予測できなさは[UUID.randomUUID]と変わらない。使い終わった乱数は消す。
+ * このクラスはスレッドセーフではない。複数のスレッドから使う場合は[current]でスレッドごとのインスタンスを使う。
+ * @param blockSize 1回に取り出す乱数のバイト数。16の倍数に切り上げる。
+ */
+class UuidV4Generator(
+        private val random: SecureRandom = SecureRandom(),
+        blockSize: Int = DEFAULT_BLOCK_SIZE
+) {
+    private val block: ByteArray
+    private val blockBuffer: ByteBuffer
+    /** [block]の次に使う位置。 */
+    private var position: Int
+
+
+    init {
+        require(blockSize in 1..MAX_BLOCK_SIZE) { "blockSize=$blockSize" }
+        block = ByteArray((blockSize + 15) and 15.inv())
+        blockBuffer = ByteBuffer.wrap(block)
+        position = block.size
+    }
+
+
+    fun generate(): UUID {
+        var uuid: UUID? = null
+        next { m, l -> uuid = UUID(m, l) }
+        return uuid!!
+    }
+
+
+    /** UUIDを生成して[sink]に渡す。[UUID]のインスタンスは作らない。 */
+    fun generateTo(sink: UuidSink) {
+        next(sink::accept)
+    }
+
+
+    /** [dst]の[offset]に上位64ビット、[offset]+1に下位64ビットを書き込む。 */
+    fun generateInto(dst: LongArray, offset: Int) {
+        require(offset >= 0 && offset + 2 <= dst.size) { "offset=$offset, dst.size=${dst.size}" }
+        next { m, l ->
+            dst[offset] = m
+            dst[offset + 1] = l
+        }
+    }
+
+
+    /** [buffer]の現在位置に16バイトで書き込んで位置を進める。 */
+    fun generateInto(buffer: ByteBuffer) {
+        require(buffer.remaining() >= 16) { "buffer.remaining()=${buffer.remaining()}" }
+        next { m, l -> buffer.putLong(m).putLong(l) }
+    }
+
+
+    /** [count]個のUUIDを生成する。 */
+    fun generate(count: Int): List<UUID> {
+        val msb = LongArray(count)
+        val lsb = LongArray(count)
+        generateInto(msb, lsb)
+        return List(count) { UUID(msb[it], lsb[it]) }
+    }
+
+
+    /**
+     * [length]個のUUIDを生成し、上位64ビットを[msb]、下位64ビットを[lsb]のそれぞれ[offset]以降に書き込む。
+     */
+    fun generateInto(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset) {
+        require(offset >= 0 && length >= 0 && offset + length <= msb.size && offset + length <= lsb.size) {
+            "offset=$offset, length=$length, msb.size=${msb.size}, lsb.size=${lsb.size}"
+        }
+        for (i in offset until offset + length) {
+            next { m, l ->
+                msb[i] = m
+                lsb[i] = l
+            }
+        }
+    }
+
+
+    /** 溜めてある乱数から8バイト取り出す。 */
+    internal fun nextLong(): Long {
+        if (position > block.size - 8) refill()
+        val p = position
+        val v = blockBuffer.getLong(p)
+        blockBuffer.putLong(p, 0L)
+        position = p + 8
+        return v
+    }
+
+
+    private fun refill() {
+        random.nextBytes(block)
+        position = 0
+    }
+
+
+    /** 溜めてある乱数から16バイト取り出してVersion4のUUIDにする。 */
+    private inline fun next(sink: (msb: Long, lsb: Long) -> Unit) {
+        if (position > block.size - 16) refill()
+        val p = position
+        val m = blockBuffer.getLong(p)
+        val l = blockBuffer.getLong(p + 8)
+        // 同じ乱数が後で読み出されないように消す
+        blockBuffer.putLong(p, 0L)
+        blockBuffer.putLong(p + 8, 0L)
+        position = p + 16
+        sink(m and 0xf000L.inv() or 0x4000L, l and 0x3fffffffffffffffL or Long.MIN_VALUE)
+    }
+
+
+    companion object {
+        private const val DEFAULT_BLOCK_SIZE = 4096
+        private const val MAX_BLOCK_SIZE = 1 shl 20
+
+        private val threadLocal = object : ThreadLocal<UuidV4Generator>() {
+            override fun initialValue() = UuidV4Generator()
+        }
+
+
+        /** 現在のスレッド用のインスタンス。 */
+        @JvmStatic
+        fun current(): UuidV4Generator = threadLocal.get()!!
+    }
+
+}
@@ -0,0 +1,110 @@
+package jp.programminglife.libpljp.android
+
+import java.util.UUID
+
+
+/**
+ * Version6 (Version1のタイムスタンプを上位から並べ直したもの) のUUIDとVersion1の相互変換。
+ *
+ * 下位64ビット(クロックシーケンス、バリアント、ノードID)はVersion1と同じで、上位64ビットだけが異なる。
+ * そのため変換は上位64ビットの並べ替えだけで済み、情報は失われない。
+ */
+object UuidV6 {
+
+    /**
+     * Version6のUUIDの上位64ビットを組み立てる。
+     * @param uuidTime UUIDのタイムスタンプ(100ns単位)。
+     */
+    fun makeMsb(uuidTime: Long): Long {
+        val timeHigh = uuidTime ushr 12 and 0xffffffffffffL
+        val timeLow = uuidTime and 0xfffL
+        return timeHigh shl 16 or 0x6000L or timeLow
+    }
+
+
+    /** Version6のUUIDの上位64ビットからタイムスタンプ(100ns単位)を取り出す。 */
+    fun timestamp(msb: Long): Long = msb ushr 16 shl 12 or (msb and 0xfffL)
+
+
+    /** Version6の[uuid]のタイムスタンプ(100ns単位)。 */
+    fun timestamp(uuid: UUID): Long {
+        require(uuid.version() == 6) { "Not a version 6 UUID." }
+        return timestamp(uuid.mostSignificantBits)
+    }
+
+
+    /** Version1のUUIDの上位64ビットをVersion6に変換する。 */
+    fun fromVersion1Msb(msb: Long): Long {
+        val timeLow = msb ushr 32
+        val timeMid = msb ushr 16 and 0xffffL
+        val timeHigh = msb and 0xfffL
+        return makeMsb(timeHigh shl 48 or (timeMid shl 32) or timeLow)
+    }
+
+
+    /** Version6のUUIDの上位64ビットをVersion1に変換する。 */
+    fun toVersion1Msb(msb: Long): Long = UuidGenerator.makeMsbVersion1(timestamp(msb))
+
+
+    fun fromVersion1(uuid: UUID): UUID {
+        require(uuid.version() == 1) { "Not a version 1 UUID." }
+        return UUID(fromVersion1Msb(uuid.mostSignificantBits), uuid.leastSignificantBits)
+    }
+
+
+    fun toVersion1(uuid: UUID): UUID {
+        require(uuid.version() == 6) { "Not a version 6 UUID." }
+        return UUID(toVersion1Msb(uuid.mostSignificantBits), uuid.leastSignificantBits)
+    }
+
+
+    /**
+     * [src]の[srcOffset]から[length]個のUUIDの上位64ビットをVersion1からVersion6に変換して[dst]の[dstOffset]以降に
+     * 書き込む。[src]と[dst]は同じ配列でもよい。Version1以外の値は変換せずそのまま書き込む。
+     * 下位64ビットは変わらないので変換する必要はない。
+     * @return 変換した数。
+     */
+    fun fromVersion1(src: LongArray, srcOffset: Int, dst: LongArray, dstOffset: Int, length: Int): Int {
+        checkRange(src, srcOffset, dst, dstOffset, length)
+        var converted = 0
+        for (i in 0 until length) {
+            val msb = src[srcOffset + i]
+            dst[dstOffset + i] = if (version(msb) == 1) {
+                converted++
+                fromVersion1Msb(msb)
+            } else msb
+        }
+        return converted
+    }
+
+
+    /**
+     * [src]の[srcOffset]から[length]個のUUIDの上位64ビットをVersion6からVersion1に変換して[dst]の[dstOffset]以降に
+     * 書き込む。[src]と[dst]は同じ配列でもよい。Version6以外の値は変換せずそのまま書き込む。
+     * @return 変換した数。
+     */
+    fun toVersion1(src: LongArray, srcOffset: Int, dst: LongArray, dstOffset: Int, length: Int): Int {
+        checkRange(src, srcOffset, dst, dstOffset, length)
+        var converted = 0
+        for (i in 0 until length) {
+            val msb = src[srcOffset + i]
+            dst[dstOffset + i] = if (version(msb) == 6) {
+                converted++
+                toVersion1Msb(msb)
+            } else msb
+        }
+        return converted
+    }
+
+
+    private fun version(msb: Long) = (msb ushr 12 and 0xfL).toInt()
+
+
+    private fun checkRange(src: LongArray, srcOffset: Int, dst: LongArray, dstOffset: Int, length: Int) {
+        require(srcOffset >= 0 && dstOffset >= 0 && length >= 0 &&
+                srcOffset + length <= src.size && dstOffset + length <= dst.size) {
+            "srcOffset=$srcOffset, dstOffset=$dstOffset, length=$length, src.size=${src.size}, dst.size=${dst.size}"
+        }
+    }
+
+}
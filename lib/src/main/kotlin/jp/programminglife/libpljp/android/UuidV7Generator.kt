@@ -0,0 +1,107 @@
+package jp.programminglife.libpljp.android
+
+import java.security.SecureRandom
+import java.util.UUID
+
+
+/**
+ * Version7 (Unixエポックのミリ秒を先頭に置く時刻順) のUUIDを生成する。
+ *
+ * 48ビットのミリ秒時刻の後ろの12ビット(rand_a)をミリ秒未満のカウンターとして使い、残りの62ビットは乱数にする。
+ * ミリ秒時刻とカウンターを[MillisSequencer]で払い出すので、同じプロセス内で生成したUUIDは
+ * 時計が巻き戻っても必ず単調に増加する。カウンターが1ミリ秒内で溢れた場合は次のミリ秒を前借りする。
+ * 前借りは時計より[maxClockLeadMillis]先のミリ秒までで、それを使い切ると時計が進むのを待つ。
+ * @param clock 時計。デフォルトは[UuidGenerator]、[UlidGenerator]、[LongIdGenerator]と同じ[UuidClock.HYBRID]。
+ * @param maxClockLeadMillis 前借りしたミリ秒が時計より先行してよい量。0なら前借りしない。
+ */
+class UuidV7Generator(
+        private val clock: UuidClock = UuidClock.HYBRID,
+        private val maxClockLeadMillis: Long = 1000L
+) {
+    private val rnd = SecureRandom()
+
+    init {
+        require(maxClockLeadMillis in 0L..(Int.MAX_VALUE / 10000L)) { "maxClockLeadMillis=$maxClockLeadMillis" }
+    }
+
+
+    /**
+     * 現在時刻でUUIDを生成する。
+     */
+    fun generate(): UUID = generate(currentMillis())
+
+
+    /**
+     * @param time ミリ秒単位の時刻。前回生成したUUIDの時刻より前の場合は前回の時刻が使われる。
+     * 前借りできる範囲を使い切っている場合は、[time]と時計の後の方の時刻から前借りできるようになるまで待つ。
+     */
+    fun generate(time: Long): UUID {
+        var tick = 0L
+        reserve(time, 1) { first, _ -> tick = first }
+        return UUID(makeMsbVersion7(tick), makeLsbVersion7(rnd.nextLong()))
+    }
+
+
+    /**
+     * 現在時刻で[length]個のUUIDを生成し、上位64ビットを[msb]、下位64ビットを[lsb]のそれぞれ[offset]以降に書き込む。
+     * 状態の更新は前借りできる範囲ごとに1回だけ行う。
+     */
+    fun generateInto(msb: LongArray, lsb: LongArray, offset: Int = 0, length: Int = msb.size - offset) {
+        require(offset >= 0 && length >= 0 && offset + length <= msb.size && offset + length <= lsb.size) {
+            "offset=$offset, length=$length, msb.size=${msb.size}, lsb.size=${lsb.size}"
+        }
+        var i = 0
+        while (i < length) {
+            i += reserve(currentMillis(), length - i) { first, granted ->
+                for (k in 0 until granted) {
+                    msb[offset + i + k] = makeMsbVersion7(first + k)
+                    lsb[offset + i + k] = makeLsbVersion7(rnd.nextLong())
+                }
+            }
+        }
+    }
+
+
+    /**
+     * ミリ秒時刻とカウンターを連結した値(tick)を最大[count]個連続で予約し、先頭のtickと予約できた数を[block]に渡す。
+     * 新しいミリ秒ではカウンターを0x000 - 0x7ffの乱数から始め、1ミリ秒内で溢れる余地を残す。
+     * [time]より[maxClockLeadMillis]を超えて先のミリ秒は予約せず、1つも予約できなければ[time]と時計の後の方が
+     * 進むのを待つ。前回のミリ秒がそれより先にある場合は時計が巻き戻ったものとして、前回のミリ秒を時刻の代わりにする。
+     * @return 予約できた数。
+     */
+    private inline fun reserve(time: Long, count: Int, block: (first: Long, granted: Int) -> Unit): Int =
+            sequencer.reserve(count, maxClockLeadMillis, time and TIME_MASK,
+                    { maxOf(time, currentMillis()) and TIME_MASK },
+                    { rnd.nextInt(COUNTER_SEED_RANGE).toLong() }, block)
+
+
+    private fun currentMillis() = clock.ticks() / 10000L
+
+
+    fun epochMilli(uuid: UUID): Long = uuid.mostSignificantBits ushr 16
+
+
+    companion object {
+        private const val COUNTER_BITS = 12
+        private const val COUNTER_SEED_RANGE = 0x800
+        private const val TIME_MASK = 0xffffffffffffL
+
+        /** ミリ秒時刻 shl 12 or カウンターのtickを払い出す。プロセス内の全ての生成器で共有する。 */
+        private val sequencer = MillisSequencer(COUNTER_BITS)
+
+
+        /** Version7のUUIDの上位64ビットを組み立てる。 */
+        private fun makeMsbVersion7(tick: Long): Long {
+            val time = tick ushr COUNTER_BITS and TIME_MASK
+            val counter = tick and 0xfffL
+            return time shl 16 or 0x7000L or counter
+        }
+
+
+        /** Version7のUUIDの下位64ビット(バリアントと62ビットの乱数)を組み立てる。 */
+        private fun makeLsbVersion7(random: Long): Long =
+                random and 0x3fffffffffffffffL or Long.MIN_VALUE
+
+    }
+
+}
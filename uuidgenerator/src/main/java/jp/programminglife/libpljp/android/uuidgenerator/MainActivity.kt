@@ -74,6 +74,7 @@ class MainActivity : ComponentActivity() {
                 null
             }
             specifiedValueRepository.nodeId = nodeId
+            uuidGenerator.invalidateNodeId()
             val uuidStr = buildString {
                 (0 until n).joinTo(buffer = this, separator = "\n", transform = {
                     uuidGenerator.generate(System.currentTimeMillis(), System.nanoTime()).toString()